@@ -0,0 +1,221 @@
+package casson.regexp;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks compiling RegularExpressions and matching input with them.
+ * 
+ * Each family of expressions is a closure around a body, so input of any size is built by repeating the body.
+ * Non-matching input is the same input with its last character changed, so the whole input has to be read to reject it.
+ * 
+ * The batch benchmarks match many inputs against (a|b)*a(a|b){n}, whose DFA has 2^(n+1) states,
+ * so the table goes from fitting in the cache to several times larger than it.
+ * 
+ * Run with ant bench, the results are written to build/bench/results.json.
+ *
+ * @author Chris Casson
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RegularExpressionBenchmark {
+
+    /**
+     * The families of expressions, each with the body that's repeated to build input.
+     */
+    public enum Family {
+        
+        // closures inside closures
+        NESTED_CLOSURES("((a(b(c(d)*)*)*)*e)*", "abcdde"),
+        
+        // a union of 500 short keywords
+        WIDE_UNION(keywords(500), "keyword"),
+        
+        // a 500 character literal
+        LONG_CONCATENATION("(" + literal(500) + ")*", literal(500));
+
+        final String expression;
+        final String body;
+
+        Family(String expression, String body) {
+            this.expression = expression;
+            this.body = body;
+        }
+    }
+
+    private static String literal(int length) {
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            literal.append((char) ('a' + i % 26));
+        }
+        return literal.toString();
+    }
+
+    private static String keywords(int count) {
+        // (keyword)|(k0)|(k1)|... all inside a closure, parenthesized to keep each keyword a separate alternative
+        StringBuilder expression = new StringBuilder("((keyword)");
+        for (int i = 0; i < count; i++) {
+            expression.append("|(k");
+            for (int n = i; n > 0 || expression.charAt(expression.length() - 1) == 'k'; n /= 26) {
+                expression.append((char) ('a' + n % 26));
+            }
+            expression.append(')');
+        }
+        return expression.append(")*").toString();
+    }
+
+    /**
+     * The expression being compiled.
+     */
+    @State(Scope.Benchmark)
+    public static class CompileState {
+
+        @Param
+        public Family family;
+    }
+
+    /**
+     * The number of deterministic states of the compiled expression, reported next to the compile time.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class StateCounts {
+
+        public int states;
+        public int unminimizedStates;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            states = 0;
+            unminimizedStates = 0;
+        }
+    }
+
+    /**
+     * A compiled expression and input for it.
+     */
+    @State(Scope.Benchmark)
+    public static class MatchState {
+
+        @Param
+        public Family family;
+
+        // input sizes in characters, from 10 B to 100 MB
+        @Param({"10", "1000", "1000000", "100000000"})
+        public int size;
+
+        @Param({"true", "false"})
+        public boolean matching;
+
+        RegularExpression deterministic;
+        RegularExpression nonDeterministic;
+        String input;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            deterministic = new RegularExpression(family.expression);
+            nonDeterministic = new RegularExpressionBuilder().determinize(false).toRegularExpression(family.expression);
+            
+            // repeat the body until the input reaches the size, rounding down to whole bodies so it can match
+            StringBuilder builder = new StringBuilder(size + family.body.length());
+            do {
+                builder.append(family.body);
+            } while (builder.length() + family.body.length() <= size);
+            if (!matching) {
+                builder.setCharAt(builder.length() - 1, 'x');
+            }
+            input = builder.toString();
+            
+            if (deterministic.accepts(input) != matching) {
+                throw new IllegalStateException(family + " input doesn't match as expected");
+            }
+        }
+    }
+
+    /**
+     * A compiled expression with a DFA of a given size and a batch of inputs for it.
+     */
+    @State(Scope.Benchmark)
+    public static class BatchState {
+
+        // the number of characters after the a, the DFA has 2^(tail + 1) states
+        @Param({"8", "14", "18"})
+        public int tail;
+
+        // 1 matches the inputs one after the other
+        @Param({"1", "4", "8"})
+        public int lanes;
+
+        RegularExpression re;
+        CharSequence[] inputs;
+        boolean[] out;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            // keep the table even when it's big, instead of matching bit-parallel
+            re = new RegularExpressionBuilder().bitParallel(false).toRegularExpression("(a|b)*a(a|b){" + tail + "}");
+            
+            // random input visits states all over the table, so most steps miss the cache once it's large enough
+            Random random = new Random(25);
+            inputs = new CharSequence[4096];
+            for (int i = 0; i < inputs.length; i++) {
+                char[] input = new char[1000];
+                for (int k = 0; k < input.length; k++) {
+                    input[k] = random.nextBoolean() ? 'a' : 'b';
+                }
+                inputs[i] = new String(input);
+            }
+            out = new boolean[inputs.length];
+        }
+    }
+
+    @Benchmark
+    public RegularExpression compile(CompileState state, StateCounts counts) {
+        RegularExpression re = new RegularExpression(state.family.expression);
+        counts.states = re.getStateCount();
+        counts.unminimizedStates = re.getUnminimizedStateCount();
+        return re;
+    }
+
+    @Benchmark
+    public RegularExpression compileNonDeterministic(CompileState state) {
+        return new RegularExpressionBuilder().determinize(false).toRegularExpression(state.family.expression);
+    }
+
+    @Benchmark
+    public boolean accepts(MatchState state) {
+        return state.deterministic.accepts(state.input);
+    }
+
+    @Benchmark
+    public boolean acceptsNonDeterministic(MatchState state) {
+        return state.nonDeterministic.accepts(state.input);
+    }
+
+    @Benchmark
+    public boolean[] acceptsAllInterleaved(BatchState state) {
+        state.re.acceptsAllInterleaved(state.inputs, state.out, state.lanes);
+        return state.out;
+    }
+
+    @Benchmark
+    public Match find(MatchState state) {
+        return state.deterministic.find(state.input);
+    }
+}
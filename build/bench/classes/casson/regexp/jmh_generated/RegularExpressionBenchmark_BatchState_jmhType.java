@@ -0,0 +1,4 @@
+package casson.regexp.jmh_generated;
+public class RegularExpressionBenchmark_BatchState_jmhType extends RegularExpressionBenchmark_BatchState_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package casson.regexp.jmh_generated;
+public class RegularExpressionBenchmark_MatchState_jmhType extends RegularExpressionBenchmark_MatchState_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package casson.regexp.jmh_generated;
+public class RegularExpressionBenchmark_StateCounts_jmhType extends RegularExpressionBenchmark_StateCounts_jmhType_B3 {
+}
+
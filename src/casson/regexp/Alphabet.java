@@ -0,0 +1,176 @@
+package casson.regexp;
+
+import casson.regexp.RegularExpression.SyntaxTree;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * The characters of expressions with character classes, split into ranges the expressions never tell apart.
+ *
+ * Every literal and every range of a class starts and ends on a range boundary, so each range is either
+ * inside a class range or outside it. The automata only have an edge for the lowest character of each range,
+ * its representative, and input characters are mapped to their representative before they're looked up.
+ * [a-z] is one edge instead of 26, and the tables map the whole range to the representative's class.
+ * A literal is a range of its own, so expressions without classes don't need an alphabet.
+ *
+ * @author Chris Casson
+ */
+final class Alphabet {
+
+    // the ranges the classes and literals use, sorted, lows[r] is range r's representative
+    final char[] lows;
+    final char[] highs;
+
+    private Alphabet(char[] lows, char[] highs) {
+        this.lows = lows;
+        this.highs = highs;
+    }
+
+    /**
+     *
+     * @param tree
+     * @return the alphabet of the tree, or null if it doesn't have any classes
+     */
+    static Alphabet of(SyntaxTree tree) {
+        return of(Collections.singletonList(tree));
+    }
+
+    /**
+     * Builds one alphabet for trees that are matched together.
+     *
+     * @param trees
+     * @return the alphabet of the trees, or null if none of them have any classes
+     */
+    static Alphabet of(Collection<SyntaxTree> trees) {
+        // the start and the end + 1 of every literal and class range
+        int[] bounds = new int[16];
+        int boundCount = 0;
+        boolean hasClasses = false;
+        for (SyntaxTree tree : trees) {
+            for (SyntaxTree node : RegularExpression.postOrder(tree)) {
+                if (!node.isPosition()) {
+                    continue;
+                }
+                char[] ranges = node.ranges != null ? node.ranges : new char[] {node.content, node.content};
+                hasClasses |= node.ranges != null;
+                if (boundCount + ranges.length > bounds.length) {
+                    bounds = Arrays.copyOf(bounds, Math.max(bounds.length * 2, boundCount + ranges.length));
+                }
+                for (int i = 0; i < ranges.length; i += 2) {
+                    bounds[boundCount++] = ranges[i];
+                    bounds[boundCount++] = ranges[i + 1] + 1;
+                }
+            }
+        }
+        if (!hasClasses) {
+            return null;
+        }
+
+        // the pairs in order are the ranges, bounds[i] and bounds[i + 1] - 1
+        Arrays.sort(bounds, 0, boundCount);
+        int uniqueCount = 0;
+        for (int i = 0; i < boundCount; i++) {
+            if (uniqueCount == 0 || bounds[uniqueCount - 1] != bounds[i]) {
+                bounds[uniqueCount++] = bounds[i];
+            }
+        }
+
+        // count how many literals and class ranges start before each range and end before it,
+        // the ranges still inside one of them are the ones used
+        int[] depth = new int[uniqueCount];
+        for (SyntaxTree tree : trees) {
+            for (SyntaxTree node : RegularExpression.postOrder(tree)) {
+                if (!node.isPosition()) {
+                    continue;
+                }
+                char[] ranges = node.ranges != null ? node.ranges : new char[] {node.content, node.content};
+                for (int i = 0; i < ranges.length; i += 2) {
+                    depth[Arrays.binarySearch(bounds, 0, uniqueCount, ranges[i])]++;
+                    depth[Arrays.binarySearch(bounds, 0, uniqueCount, ranges[i + 1] + 1)]--;
+                }
+            }
+        }
+        char[] lows = new char[uniqueCount];
+        char[] highs = new char[uniqueCount];
+        int rangeCount = 0;
+        int inside = 0;
+        for (int i = 0; i < uniqueCount - 1; i++) {
+            inside += depth[i];
+            if (inside > 0) {
+                lows[rangeCount] = (char) bounds[i];
+                highs[rangeCount] = (char) (bounds[i + 1] - 1);
+                rangeCount++;
+            }
+        }
+        return new Alphabet(Arrays.copyOf(lows, rangeCount), Arrays.copyOf(highs, rangeCount));
+    }
+
+    /**
+     *
+     * @param character
+     * @return the index of the range holding the character, or -1 if no literal or class has it
+     */
+    int rangeOf(char character) {
+        int low = 0;
+        int high = lows.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (highs[middle] < character) {
+                low = middle + 1;
+            } else if (lows[middle] > character) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param character
+     * @return the character the automata have edges for in place of the given one,
+     * characters no literal or class has are their own representative and don't have any edges
+     */
+    char representative(char character) {
+        int range = rangeOf(character);
+        return range < 0 ? character : lows[range];
+    }
+
+    /**
+     *
+     * @param ranges a class's ranges
+     * @return the representatives of the ranges inside the class, sorted
+     */
+    char[] representatives(char[] ranges) {
+        int count = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            count += rangeOf(ranges[i + 1]) - rangeOf(ranges[i]) + 1;
+        }
+        char[] representatives = new char[count];
+        count = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            for (int range = rangeOf(ranges[i]), last = rangeOf(ranges[i + 1]); range <= last; range++) {
+                representatives[count++] = lows[range];
+            }
+        }
+        return representatives;
+    }
+
+    /**
+     * Copies a class map that has the representatives' classes so every character in each range has its representative's class.
+     *
+     * @param classMap classMap[character] is the class, characters past the end of the map are in class 0
+     * @return the class map for every character
+     */
+    char[] expand(char[] classMap) {
+        char[] expanded = Arrays.copyOf(classMap, Math.max(classMap.length, lows.length == 0 ? 0 : highs[highs.length - 1] + 1));
+        for (int range = 0; range < lows.length; range++) {
+            char representative = lows[range];
+            char characterClass = representative < classMap.length ? classMap[representative] : 0;
+            Arrays.fill(expanded, representative, highs[range] + 1, characterClass);
+        }
+        return expanded;
+    }
+}
@@ -0,0 +1,279 @@
+package casson.regexp;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+
+/**
+ * Matches many inputs against the same expression.
+ * 
+ * With a DFATable, inputs are matched several at a time in lockstep. The table lookups of a step
+ * don't depend on each other, so the processor can wait on all of them at once instead of one after the other.
+ * Four lanes are enough while the table fits in the cache, larger tables miss on most steps and get eight
+ * so more of the misses overlap. Large batches are split into ranges that run on a ForkJoinPool.
+ *
+ * @author Chris Casson
+ */
+final class BatchMatcher {
+
+    // batches smaller than this are matched on the calling thread
+    static final int MIN_PARALLEL_BATCH = 4096;
+    
+    // the number of inputs each task matches
+    private static final int TASK_BATCH = 1024;
+    
+    // tables with more bytes than this don't fit in the cache and are matched eight lanes at a time
+    static final long LARGE_TABLE_BYTES = 1 << 20;
+
+    /**
+     * Matches inputs[from, to) and splits the range in half until it's small enough.
+     */
+    private static final class BatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DFATable table;
+        private final Predicate<CharSequence> matcher;
+        private final CharSequence[] inputs;
+        private final boolean[] out;
+        private final int from;
+        private final int to;
+
+        BatchTask(DFATable table, Predicate<CharSequence> matcher, CharSequence[] inputs, boolean[] out, int from, int to) {
+            this.table = table;
+            this.matcher = matcher;
+            this.inputs = inputs;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TASK_BATCH) {
+                acceptsRange(table, matcher, inputs, out, from, to);
+                return;
+            }
+            
+            int middle = (from + to) >>> 1;
+            invokeAll(new BatchTask(table, matcher, inputs, out, from, middle),
+                    new BatchTask(table, matcher, inputs, out, middle, to));
+        }
+    }
+
+    private BatchMatcher() {
+    }
+
+    /**
+     * Matches the inputs on the given pool, or on the calling thread if there are only a few of them.
+     * 
+     * @param table the table to match with, or null to use matcher
+     * @param matcher used when there's no table, it must be safe to call from several threads
+     * @param inputs
+     * @param out out[i] is set to whether inputs[i] is accepted
+     * @param pool
+     */
+    static void acceptsAll(DFATable table, Predicate<CharSequence> matcher, CharSequence[] inputs, boolean[] out, ForkJoinPool pool) {
+        if (inputs.length < MIN_PARALLEL_BATCH) {
+            acceptsRange(table, matcher, inputs, out, 0, inputs.length);
+        } else {
+            pool.invoke(new BatchTask(table, matcher, inputs, out, 0, inputs.length));
+        }
+    }
+
+    /**
+     * Matches inputs[from, to) on the calling thread.
+     */
+    static void acceptsRange(DFATable table, Predicate<CharSequence> matcher, CharSequence[] inputs, boolean[] out, int from, int to) {
+        if (table != null) {
+            acceptsInterleaved(table, inputs, out, from, to);
+        } else {
+            for (int i = from; i < to; i++) {
+                out[i] = matcher.test(inputs[i]);
+            }
+        }
+    }
+
+    /**
+     * Matches inputs[from, to) four or eight at a time, depending on the size of the table.
+     */
+    static void acceptsInterleaved(DFATable table, CharSequence[] inputs, boolean[] out, int from, int to) {
+        acceptsInterleaved(table, inputs, out, from, to, table.getByteCount() > LARGE_TABLE_BYTES ? 8 : 4);
+    }
+
+    /**
+     * Matches inputs[from, to) the given number at a time.
+     * 
+     * @param lanes 1, 4 or 8
+     */
+    static void acceptsInterleaved(DFATable table, CharSequence[] inputs, boolean[] out, int from, int to, int lanes) {
+        int i = from;
+        if (lanes == 8) {
+            i = acceptsEight(table, inputs, out, i, to);
+        }
+        if (lanes >= 4) {
+            i = acceptsFour(table, inputs, out, i, to);
+        }
+        
+        // the inputs that don't fill a group
+        for (; i < to; i++) {
+            out[i] = table.accepts(inputs[i]);
+        }
+    }
+
+    /**
+     * Matches inputs[from, to) four at a time.
+     * Each group of four runs in lockstep up to the length of its shortest input, then the rest of each is run alone.
+     * 
+     * @return the index of the first input that didn't fill a group
+     */
+    private static int acceptsFour(DFATable table, CharSequence[] inputs, boolean[] out, int from, int to) {
+        // local copies so the loop only touches registers and the two arrays
+        final int[] transitions = table.transitions;
+        final char[] map = table.classMap;
+        final int columns = table.classCount;
+        final int mapLength = map.length;
+        
+        int i = from;
+        for (; i + 4 <= to; i += 4) {
+            CharSequence a = inputs[i];
+            CharSequence b = inputs[i + 1];
+            CharSequence c = inputs[i + 2];
+            CharSequence d = inputs[i + 3];
+            int lengthA = a.length();
+            int lengthB = b.length();
+            int lengthC = c.length();
+            int lengthD = d.length();
+            int common = Math.min(Math.min(lengthA, lengthB), Math.min(lengthC, lengthD));
+            
+            int stateA = table.initialState;
+            int stateB = table.initialState;
+            int stateC = table.initialState;
+            int stateD = table.initialState;
+            for (int k = 0; k < common; k++) {
+                char charA = a.charAt(k);
+                char charB = b.charAt(k);
+                char charC = c.charAt(k);
+                char charD = d.charAt(k);
+                
+                // a dead lane stays dead, the other lanes keep going
+                if (stateA != DFATable.DEAD_STATE) {
+                    stateA = transitions[stateA * columns + (charA < mapLength ? map[charA] : 0)];
+                }
+                if (stateB != DFATable.DEAD_STATE) {
+                    stateB = transitions[stateB * columns + (charB < mapLength ? map[charB] : 0)];
+                }
+                if (stateC != DFATable.DEAD_STATE) {
+                    stateC = transitions[stateC * columns + (charC < mapLength ? map[charC] : 0)];
+                }
+                if (stateD != DFATable.DEAD_STATE) {
+                    stateD = transitions[stateD * columns + (charD < mapLength ? map[charD] : 0)];
+                }
+                
+                if ((stateA & stateB & stateC & stateD) == DFATable.DEAD_STATE) {
+                    // every lane is dead
+                    break;
+                }
+            }
+            
+            // run what's left of the longer inputs
+            out[i] = table.isAccepting(table.run(stateA, a, common, lengthA));
+            out[i + 1] = table.isAccepting(table.run(stateB, b, common, lengthB));
+            out[i + 2] = table.isAccepting(table.run(stateC, c, common, lengthC));
+            out[i + 3] = table.isAccepting(table.run(stateD, d, common, lengthD));
+        }
+        return i;
+    }
+
+    /**
+     * Matches inputs[from, to) eight at a time, the same way as acceptsFour.
+     * 
+     * @return the index of the first input that didn't fill a group
+     */
+    private static int acceptsEight(DFATable table, CharSequence[] inputs, boolean[] out, int from, int to) {
+        final int[] transitions = table.transitions;
+        final char[] map = table.classMap;
+        final int columns = table.classCount;
+        final int mapLength = map.length;
+        
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            CharSequence a = inputs[i];
+            CharSequence b = inputs[i + 1];
+            CharSequence c = inputs[i + 2];
+            CharSequence d = inputs[i + 3];
+            CharSequence e = inputs[i + 4];
+            CharSequence f = inputs[i + 5];
+            CharSequence g = inputs[i + 6];
+            CharSequence h = inputs[i + 7];
+            int lengthA = a.length();
+            int lengthB = b.length();
+            int lengthC = c.length();
+            int lengthD = d.length();
+            int lengthE = e.length();
+            int lengthF = f.length();
+            int lengthG = g.length();
+            int lengthH = h.length();
+            int common = Math.min(Math.min(Math.min(lengthA, lengthB), Math.min(lengthC, lengthD)),
+                    Math.min(Math.min(lengthE, lengthF), Math.min(lengthG, lengthH)));
+            
+            int stateA = table.initialState;
+            int stateB = table.initialState;
+            int stateC = table.initialState;
+            int stateD = table.initialState;
+            int stateE = table.initialState;
+            int stateF = table.initialState;
+            int stateG = table.initialState;
+            int stateH = table.initialState;
+            for (int k = 0; k < common; k++) {
+                char charA = a.charAt(k);
+                char charB = b.charAt(k);
+                char charC = c.charAt(k);
+                char charD = d.charAt(k);
+                char charE = e.charAt(k);
+                char charF = f.charAt(k);
+                char charG = g.charAt(k);
+                char charH = h.charAt(k);
+                
+                if (stateA != DFATable.DEAD_STATE) {
+                    stateA = transitions[stateA * columns + (charA < mapLength ? map[charA] : 0)];
+                }
+                if (stateB != DFATable.DEAD_STATE) {
+                    stateB = transitions[stateB * columns + (charB < mapLength ? map[charB] : 0)];
+                }
+                if (stateC != DFATable.DEAD_STATE) {
+                    stateC = transitions[stateC * columns + (charC < mapLength ? map[charC] : 0)];
+                }
+                if (stateD != DFATable.DEAD_STATE) {
+                    stateD = transitions[stateD * columns + (charD < mapLength ? map[charD] : 0)];
+                }
+                if (stateE != DFATable.DEAD_STATE) {
+                    stateE = transitions[stateE * columns + (charE < mapLength ? map[charE] : 0)];
+                }
+                if (stateF != DFATable.DEAD_STATE) {
+                    stateF = transitions[stateF * columns + (charF < mapLength ? map[charF] : 0)];
+                }
+                if (stateG != DFATable.DEAD_STATE) {
+                    stateG = transitions[stateG * columns + (charG < mapLength ? map[charG] : 0)];
+                }
+                if (stateH != DFATable.DEAD_STATE) {
+                    stateH = transitions[stateH * columns + (charH < mapLength ? map[charH] : 0)];
+                }
+                
+                if ((stateA & stateB & stateC & stateD & stateE & stateF & stateG & stateH) == DFATable.DEAD_STATE) {
+                    break;
+                }
+            }
+            
+            out[i] = table.isAccepting(table.run(stateA, a, common, lengthA));
+            out[i + 1] = table.isAccepting(table.run(stateB, b, common, lengthB));
+            out[i + 2] = table.isAccepting(table.run(stateC, c, common, lengthC));
+            out[i + 3] = table.isAccepting(table.run(stateD, d, common, lengthD));
+            out[i + 4] = table.isAccepting(table.run(stateE, e, common, lengthE));
+            out[i + 5] = table.isAccepting(table.run(stateF, f, common, lengthF));
+            out[i + 6] = table.isAccepting(table.run(stateG, g, common, lengthG));
+            out[i + 7] = table.isAccepting(table.run(stateH, h, common, lengthH));
+        }
+        return i;
+    }
+}
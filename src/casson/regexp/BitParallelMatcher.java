@@ -0,0 +1,135 @@
+package casson.regexp;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Matches with the position automaton of an expression that has at most 64 positions,
+ * keeping the set of active positions in the bits of a long.
+ * 
+ * Each step ORs together the follow sets of the active positions and ANDs the result with the mask
+ * of the positions holding the character that was read.
+ * The follow sets are looked up 8 positions at a time: followTables[chunk][bits] is the union of the follow sets
+ * of the positions set in bits, so a step is one lookup per 8 positions instead of one per active position.
+ *
+ * @author Chris Casson
+ */
+final class BitParallelMatcher {
+
+    // the most positions that fit in the bits of a long
+    static final int MAX_POSITIONS = Long.SIZE;
+    
+    private static final int CHUNK_BITS = 8;
+
+    private final boolean nullable;
+    private final long first;
+    private final long last;
+    
+    // followTables[chunk][bits] is the union of follow[chunk * 8 + i] for every bit i set in bits
+    private final long[][] followTables;
+    
+    // classMap[character] indexes classMasks, characters past the end of the map are in class 0 which has no positions
+    private final char[] classMap;
+    private final long[] classMasks;
+
+    /**
+     * 
+     * @param automaton the automaton to match with, it must have at most 64 positions
+     */
+    BitParallelMatcher(GlushkovAutomaton automaton) {
+        if (automaton.positionCount > MAX_POSITIONS) {
+            throw new IllegalArgumentException(automaton.positionCount + " positions don't fit in a long.");
+        }
+        
+        nullable = automaton.nullable;
+        first = toLong(automaton.first);
+        last = toLong(automaton.last);
+        
+        // build each chunk's table from the entry with the lowest bit cleared
+        int chunkCount = (automaton.positionCount + CHUNK_BITS - 1) / CHUNK_BITS;
+        followTables = new long[chunkCount][1 << CHUNK_BITS];
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            long[] table = followTables[chunk];
+            for (int bits = 1; bits < table.length; bits++) {
+                int position = chunk * CHUNK_BITS + Integer.numberOfTrailingZeros(bits);
+                long positionFollow = position < automaton.positionCount ? toLong(automaton.follow[position]) : 0;
+                table[bits] = table[bits & (bits - 1)] | positionFollow;
+            }
+        }
+        
+        // one mask per distinct character, class 0 is for the characters that aren't in the expression
+        char highest = 0;
+        int characterCount = 0;
+        for (char[] characters : automaton.positionCharacters) {
+            for (char character : characters) {
+                highest = (char) Math.max(highest, character);
+            }
+            characterCount += characters.length;
+        }
+        char[] characterClasses = new char[automaton.positionCount == 0 ? 0 : highest + 1];
+        long[] masks = new long[characterCount + 1];
+        int classCount = 1;
+        for (int p = 0; p < automaton.positionCount; p++) {
+            for (char character : automaton.positionCharacters[p]) {
+                if (characterClasses[character] == 0) {
+                    characterClasses[character] = (char) classCount++;
+                }
+                masks[characterClasses[character]] |= 1L << p;
+            }
+        }
+        classMasks = Arrays.copyOf(masks, classCount);
+        
+        // the characters in each of the alphabet's ranges share their representative's class
+        classMap = automaton.alphabet == null ? characterClasses : automaton.alphabet.expand(characterClasses);
+    }
+
+    private static long toLong(BitSet bits) {
+        long[] words = bits.toLongArray();
+        return words.length == 0 ? 0 : words[0];
+    }
+
+    /**
+     *
+     * @param input
+     * @return true if the expression matches the input, otherwise false
+     */
+    boolean accepts(CharSequence input) {
+        int length = input.length();
+        if (length == 0) {
+            return nullable;
+        }
+        
+        // local copies so the loop only touches registers and the arrays
+        final long[][] tables = followTables;
+        final char[] map = classMap;
+        final long[] masks = classMasks;
+        
+        // the first character can only be read at the first positions
+        char character = input.charAt(0);
+        long active = first & masks[character < map.length ? map[character] : 0];
+        for (int i = 1; i < length && active != 0; i++) {
+            // union the follow sets of the active positions 8 positions at a time
+            long next = 0;
+            long remaining = active;
+            for (int chunk = 0; remaining != 0; chunk++, remaining >>>= CHUNK_BITS) {
+                next |= tables[chunk][(int) remaining & 0xFF];
+            }
+            
+            character = input.charAt(i);
+            active = next & masks[character < map.length ? map[character] : 0];
+        }
+        return (active & last) != 0;
+    }
+
+    /**
+     * 
+     * @return the number of bytes in the matcher's arrays
+     */
+    long getByteCount() {
+        long bytes = (long) Character.BYTES * classMap.length + (long) Long.BYTES * classMasks.length;
+        for (long[] table : followTables) {
+            bytes += (long) Long.BYTES * table.length;
+        }
+        return bytes;
+    }
+}
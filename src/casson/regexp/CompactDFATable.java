@@ -0,0 +1,233 @@
+package casson.regexp;
+
+import java.util.Arrays;
+
+/**
+ * A DFATable with the transitions of each state stored in whichever of three encodings is smallest for it.
+ * 
+ * single - one character to one state, the common case for states in a concatenation.
+ * ranges - a sorted list of character ranges and their next states, searched with a binary search.
+ * dense - a row with the next state for every character class, like a DFATable row, for states with lots of transitions.
+ * 
+ * The encoding of each state is a byte and stepping switches on it, so there are no virtual calls for the JIT to resolve.
+ * Characters that aren't in any transition go to the dead state in every encoding.
+ *
+ * @author Chris Casson
+ */
+final class CompactDFATable {
+
+    static final byte SINGLE = 0;
+    static final byte RANGES = 1;
+    static final byte DENSE = 2;
+    
+    // a state with more ranges than this uses a dense row, so the binary search stays short
+    private static final int MAX_RANGES = 16;
+
+    final int stateCount;
+    final int initialState;
+    final boolean[] accepting;
+    
+    // the encoding of each state
+    final byte[] encodings;
+    
+    // the ranges of state s are at indexes [rangeOffsets[s], rangeOffsets[s + 1]), a single transition is one range
+    private final int[] rangeOffsets;
+    private final char[] rangeLows;
+    private final char[] rangeHighs;
+    private final int[] rangeTargets;
+    
+    // the dense row of state s starts at denseOffsets[s] and has one entry per character class
+    private final int[] denseOffsets;
+    private final int[] denseRows;
+    private final char[] classMap;
+    private final int classCount;
+
+    /**
+     * Encodes the given table.
+     *
+     * @param table
+     */
+    CompactDFATable(DFATable table) {
+        stateCount = table.stateCount;
+        initialState = table.initialState;
+        accepting = table.accepting;
+        classMap = table.classMap;
+        classCount = table.classCount;
+        
+        // only the characters in the expression can have transitions, split them once into runs of neighboring
+        // characters in the same class so each state is encoded from the runs instead of the whole class map
+        int runCount = 0;
+        char[] runLows = new char[16];
+        char[] runHighs = new char[16];
+        char[] runClasses = new char[16];
+        for (int c = 0; c < classMap.length; c++) {
+            if (classMap[c] == 0) {
+                continue;
+            }
+            if (runCount > 0 && runHighs[runCount - 1] == c - 1 && runClasses[runCount - 1] == classMap[c]) {
+                runHighs[runCount - 1] = (char) c;
+                continue;
+            }
+            if (runCount == runLows.length) {
+                runLows = Arrays.copyOf(runLows, runCount * 2);
+                runHighs = Arrays.copyOf(runHighs, runCount * 2);
+                runClasses = Arrays.copyOf(runClasses, runCount * 2);
+            }
+            runLows[runCount] = (char) c;
+            runHighs[runCount] = (char) c;
+            runClasses[runCount] = classMap[c];
+            runCount++;
+        }
+        
+        encodings = new byte[stateCount];
+        rangeOffsets = new int[stateCount + 1];
+        denseOffsets = new int[stateCount];
+        char[] lows = new char[16];
+        char[] highs = new char[16];
+        int[] targets = new int[16];
+        int rangeCount = 0;
+        int denseStateCount = 0;
+        
+        for (int s = 0; s < stateCount; s++) {
+            rangeOffsets[s] = rangeCount;
+            
+            // merge neighboring runs that go to the same state into ranges
+            int stateRanges = 0;
+            for (int run = 0; run < runCount; run++) {
+                int target = table.transitions[s * classCount + runClasses[run]];
+                if (target == DFATable.DEAD_STATE) {
+                    continue;
+                }
+                if (stateRanges > 0 && targets[rangeCount - 1] == target && highs[rangeCount - 1] == runLows[run] - 1) {
+                    highs[rangeCount - 1] = runHighs[run];
+                    continue;
+                }
+                if (rangeCount == lows.length) {
+                    lows = Arrays.copyOf(lows, rangeCount * 2);
+                    highs = Arrays.copyOf(highs, rangeCount * 2);
+                    targets = Arrays.copyOf(targets, rangeCount * 2);
+                }
+                lows[rangeCount] = runLows[run];
+                highs[rangeCount] = runHighs[run];
+                targets[rangeCount] = target;
+                rangeCount++;
+                stateRanges++;
+            }
+            
+            // a range costs 8 bytes and a dense row 4 bytes per class
+            if (stateRanges == 1 && lows[rangeCount - 1] == highs[rangeCount - 1]) {
+                encodings[s] = SINGLE;
+            } else if (stateRanges <= MAX_RANGES && stateRanges * 8 <= classCount * 4) {
+                encodings[s] = RANGES;
+            } else {
+                // drop the ranges, the row holds the transitions
+                encodings[s] = DENSE;
+                denseOffsets[s] = denseStateCount++ * classCount;
+                rangeCount -= stateRanges;
+            }
+        }
+        rangeOffsets[stateCount] = rangeCount;
+        rangeLows = Arrays.copyOf(lows, rangeCount);
+        rangeHighs = Arrays.copyOf(highs, rangeCount);
+        rangeTargets = Arrays.copyOf(targets, rangeCount);
+        
+        denseRows = new int[denseStateCount * classCount];
+        for (int s = 0; s < stateCount; s++) {
+            if (encodings[s] == DENSE) {
+                System.arraycopy(table.transitions, s * classCount, denseRows, denseOffsets[s], classCount);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param state
+     * @param character
+     * @return the state after reading character in the given state, or DFATable.DEAD_STATE
+     */
+    int step(int state, char character) {
+        switch (encodings[state]) {
+            case SINGLE: {
+                int range = rangeOffsets[state];
+                return character == rangeLows[range] ? rangeTargets[range] : DFATable.DEAD_STATE;
+            }
+            case RANGES: {
+                // binary search for the last range starting at or before the character
+                int low = rangeOffsets[state];
+                int high = rangeOffsets[state + 1] - 1;
+                while (low <= high) {
+                    int middle = (low + high) >>> 1;
+                    if (rangeLows[middle] > character) {
+                        high = middle - 1;
+                    } else if (rangeHighs[middle] < character) {
+                        low = middle + 1;
+                    } else {
+                        return rangeTargets[middle];
+                    }
+                }
+                return DFATable.DEAD_STATE;
+            }
+            default:
+                return denseRows[denseOffsets[state] + (character < classMap.length ? classMap[character] : 0)];
+        }
+    }
+
+    /**
+     * Runs the table over input[from, to) starting in the given state.
+     *
+     * @param state the state to start in
+     * @param input
+     * @param from index of the first character to read
+     * @param to index after the last character to read
+     * @return the state after reading the input, or DFATable.DEAD_STATE
+     */
+    int run(int state, CharSequence input, int from, int to) {
+        for (int i = from; i < to && state != DFATable.DEAD_STATE; i++) {
+            state = step(state, input.charAt(i));
+        }
+        return state;
+    }
+
+    /**
+     *
+     * @param state
+     * @return true if the state is accepting, otherwise false
+     */
+    boolean isAccepting(int state) {
+        return state != DFATable.DEAD_STATE && accepting[state];
+    }
+
+    /**
+     *
+     * @param input
+     * @return true if the table accepts the input, otherwise false
+     */
+    boolean accepts(CharSequence input) {
+        return isAccepting(run(initialState, input, 0, input.length()));
+    }
+
+    /**
+     * 
+     * @param encoding
+     * @return the number of states that use the encoding
+     */
+    int countStates(byte encoding) {
+        int count = 0;
+        for (byte e : encodings) {
+            if (e == encoding) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 
+     * @return the number of bytes in the table's arrays
+     */
+    long getByteCount() {
+        return encodings.length + accepting.length
+                + (long) Integer.BYTES * (rangeOffsets.length + rangeTargets.length + denseOffsets.length + denseRows.length)
+                + (long) Character.BYTES * (rangeLows.length + rangeHighs.length + classMap.length);
+    }
+}
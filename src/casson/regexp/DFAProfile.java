@@ -0,0 +1,117 @@
+package casson.regexp;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Counts how often each state and transition of a DFATable is used while matching,
+ * and uses the counts to lay the table out again with the hot states next to each other.
+ * 
+ * The counters are plain longs so counting costs little, but counts from threads matching at the same time can be lost.
+ * That's fine for finding the hot states.
+ *
+ * @author Chris Casson
+ */
+final class DFAProfile {
+
+    private final DFATable table;
+    
+    // stateVisits[state] is the number of characters read in the state
+    private final long[] stateVisits;
+    
+    // transitionVisits[state * classCount + class] is the number of times the transition was taken
+    private final long[] transitionVisits;
+
+    DFAProfile(DFATable table) {
+        this.table = table;
+        this.stateVisits = new long[table.stateCount];
+        this.transitionVisits = new long[table.transitions.length];
+    }
+
+    /**
+     * Matches the input with the table, counting each state and transition used.
+     * 
+     * @param input
+     * @return true if the table accepts the input, otherwise false
+     */
+    boolean accepts(CharSequence input) {
+        final int[] transitions = table.transitions;
+        final int columns = table.classCount;
+
+        int state = table.initialState;
+        for (int i = 0; i < input.length() && state != DFATable.DEAD_STATE; i++) {
+            int transition = state * columns + table.classOf(input.charAt(i));
+            stateVisits[state]++;
+            transitionVisits[transition]++;
+            state = transitions[transition];
+        }
+        return table.isAccepting(state);
+    }
+
+    /**
+     * 
+     * @return a copy of the counts so far
+     */
+    RegularExpressionProfile snapshot() {
+        return new RegularExpressionProfile(table, stateVisits.clone(), transitionVisits.clone());
+    }
+
+    /**
+     * Orders the states so each hot state is followed by the successor it most often goes to.
+     * 
+     * Starting from the hottest state that isn't placed yet, the hottest transition is followed
+     * until it leads to a state that's already placed, then the next hottest state starts a new run.
+     * States that were never visited go last in their current order.
+     * 
+     * @return order[newState] is the state's number in the current table
+     */
+    int[] layout() {
+        int stateCount = table.stateCount;
+        int columns = table.classCount;
+        
+        int[] order = new int[stateCount];
+        boolean[] placed = new boolean[stateCount];
+        int placedCount = 0;
+        for (int start : byVisits(stateVisits)) {
+            int state = start;
+            while (state != DFATable.DEAD_STATE && !placed[state]) {
+                placed[state] = true;
+                order[placedCount++] = state;
+                
+                // follow the most used transition to a state that isn't placed yet
+                int next = DFATable.DEAD_STATE;
+                long nextVisits = 0;
+                for (int c = 0; c < columns; c++) {
+                    int target = table.transitions[state * columns + c];
+                    long visits = transitionVisits[state * columns + c];
+                    if (target != DFATable.DEAD_STATE && !placed[target] && visits > nextVisits) {
+                        next = target;
+                        nextVisits = visits;
+                    }
+                }
+                state = next;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * 
+     * @param stateVisits
+     * @return the states sorted by visits, most visited first, states with the same visits in order
+     */
+    static int[] byVisits(long[] stateVisits) {
+        Integer[] states = new Integer[stateVisits.length];
+        for (int s = 0; s < states.length; s++) {
+            states[s] = s;
+        }
+        // the sort is stable, so states with the same count keep their order
+        Arrays.sort(states, Comparator.comparingLong((Integer s) -> stateVisits[s]).reversed());
+        
+        int[] result = new int[states.length];
+        for (int i = 0; i < states.length; i++) {
+            result[i] = states[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,242 @@
+package casson.regexp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the leftmost-longest matches of a regular expression inside the input using three tables:
+ * 
+ * forward - unanchored, finds where the first match ends, or the last place a match ends for findAll.
+ * reverse - unanchored over the reversed expression, read backwards from that end to find where matches start.
+ * anchored - the regular table, run from a start to find the longest match.
+ * 
+ * find stops reading once the leftmost match is settled, findAll reads the input once forwards and once backwards.
+ * 
+ * Each table is only ever read, so a searcher can be shared between threads.
+ *
+ * @author Chris Casson
+ */
+final class DFASearcher {
+
+    private final DFATable anchored;
+    private final DFATable forward;
+    private final DFATable reverse;
+
+    /**
+     * 
+     * @param anchored the table for the expression
+     * @param nfa the non-deterministic table for the expression, used to build the unanchored tables
+     */
+    DFASearcher(DFATable anchored, NFATable nfa) {
+        this.anchored = anchored;
+        this.forward = new DFATable(new DeterministicFSM(nfa, true).minimize(), nfa.alphabet);
+        this.reverse = new DFATable(new DeterministicFSM(nfa.reverse(), true).minimize(), nfa.alphabet);
+    }
+
+    /**
+     * Only reads as far as it needs to, so calling it again from the end of each match
+     * reads the input about once instead of to the end every time.
+     * 
+     * @param input
+     * @param from index to start searching from
+     * @return the leftmost-longest match starting at or after from, or null if there isn't one
+     */
+    Match find(CharSequence input, int from) {
+        int firstEnd = findFirstEnd(input, from);
+        if (firstEnd == -1) {
+            return null;
+        }
+        
+        int start = firstEnd == from ? from : findLeftmostStart(input, from, firstEnd);
+        return new Match(start, findLongestEnd(input, start, input.length()));
+    }
+
+    /**
+     * 
+     * @param input
+     * @return the leftmost-longest matches that don't overlap, in order
+     */
+    List<Match> findAll(CharSequence input) {
+        List<Match> matches = new ArrayList<>();
+        int lastEnd = findLastEnd(input, 0);
+        if (lastEnd == -1) {
+            return matches;
+        }
+        
+        // read backwards once from the last end and remember every position a match starts at
+        long[] starts = new long[(lastEnd >> 6) + 1];
+        int state = reverse.initialState;
+        if (reverse.accepting[state]) {
+            starts[lastEnd >> 6] |= 1L << lastEnd;
+        }
+        for (int i = lastEnd - 1; i >= 0; i--) {
+            state = restartIfDead(reverse, reverse.step(state, input.charAt(i)));
+            if (reverse.accepting[state]) {
+                starts[i >> 6] |= 1L << i;
+            }
+        }
+        
+        // take the first start after the previous match and extend it as far as possible
+        int from = 0;
+        while (from <= lastEnd) {
+            int start = nextStart(starts, from);
+            if (start == -1 || start > lastEnd) {
+                break;
+            }
+            int end = findLongestEnd(input, start, lastEnd);
+            matches.add(new Match(start, end));
+            
+            // an empty match has to move forward a character so the search doesn't get stuck
+            from = end == start ? end + 1 : end;
+        }
+        return matches;
+    }
+
+    /**
+     * Runs the unanchored forward table from the given index until it first accepts.
+     * 
+     * @return the index after the last character of the first match to end, or -1 if there isn't a match
+     */
+    private int findFirstEnd(CharSequence input, int from) {
+        int state = forward.initialState;
+        if (forward.accepting[state]) {
+            return from;
+        }
+        for (int i = from, length = input.length(); i < length; i++) {
+            state = restartIfDead(forward, forward.step(state, input.charAt(i)));
+            if (forward.accepting[state]) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the leftmost start of a match, given that the first match to end ends at firstEnd.
+     * 
+     * The leftmost match starts before firstEnd but can end after it, so the anchored table is run from every
+     * index before the best start found so far, all of them in one pass. Runs that reach the same state
+     * read the same from then on, so only the one that started first is kept, and there are never more runs
+     * than states. The pass stops once every run that could still start further left has died.
+     * 
+     * @param firstEnd the end of the first match to end, after from
+     * @return the index the leftmost match starting at or after from starts at
+     */
+    private int findLeftmostStart(CharSequence input, int from, int firstEnd) {
+        // the runs in order of their starts, a match ends at firstEnd so one of them is going to accept
+        int[] states = new int[8];
+        int[] starts = new int[8];
+        int runCount = 0;
+        int bestStart = firstEnd;
+        for (int i = from, length = input.length(); i < length && (i < bestStart || runCount > 0); i++) {
+            if (i < bestStart) {
+                if (runCount == states.length) {
+                    states = Arrays.copyOf(states, runCount * 2);
+                    starts = Arrays.copyOf(starts, runCount * 2);
+                }
+                states[runCount] = anchored.initialState;
+                starts[runCount] = i;
+                runCount++;
+            }
+            
+            // step every run, dropping the dead ones and the ones that caught up with an earlier run
+            char character = input.charAt(i);
+            int kept = 0;
+            for (int r = 0; r < runCount; r++) {
+                int state = anchored.step(states[r], character);
+                if (state == DFATable.DEAD_STATE || contains(states, kept, state)) {
+                    continue;
+                }
+                if (anchored.accepting[state] && starts[r] < bestStart) {
+                    // every run after this one started later, so none of them can be the leftmost
+                    bestStart = starts[r];
+                    runCount = r + 1;
+                    continue;
+                }
+                if (starts[r] < bestStart) {
+                    states[kept] = state;
+                    starts[kept] = starts[r];
+                    kept++;
+                }
+            }
+            runCount = kept;
+        }
+        return bestStart;
+    }
+
+    private static boolean contains(int[] states, int count, int state) {
+        for (int i = 0; i < count; i++) {
+            if (states[i] == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the unanchored forward table from the given index to the end of the input.
+     * 
+     * @return the index after the last character of the last match starting at or after from, or -1 if there isn't a match
+     */
+    private int findLastEnd(CharSequence input, int from) {
+        int lastEnd = -1;
+        int state = forward.initialState;
+        if (forward.accepting[state]) {
+            lastEnd = from;
+        }
+        for (int i = from, length = input.length(); i < length; i++) {
+            state = restartIfDead(forward, forward.step(state, input.charAt(i)));
+            if (forward.accepting[state]) {
+                lastEnd = i + 1;
+            }
+        }
+        return lastEnd;
+    }
+
+    /**
+     * Runs the anchored table from start until it dies or reaches the limit.
+     * 
+     * @return the index after the last character of the longest match from start
+     */
+    private int findLongestEnd(CharSequence input, int start, int limit) {
+        int end = start;
+        int state = anchored.initialState;
+        for (int i = start; i < limit; i++) {
+            state = anchored.step(state, input.charAt(i));
+            if (state == DFATable.DEAD_STATE) {
+                break;
+            }
+            if (anchored.accepting[state]) {
+                end = i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * An unanchored table goes back to its initial state for characters it doesn't have a transition for.
+     */
+    private static int restartIfDead(DFATable table, int state) {
+        return state == DFATable.DEAD_STATE ? table.initialState : state;
+    }
+
+    /**
+     * 
+     * @return the first set bit at or after from, or -1
+     */
+    private static int nextStart(long[] starts, int from) {
+        int word = from >> 6;
+        if (word >= starts.length) {
+            return -1;
+        }
+        long bits = starts[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == starts.length) {
+                return -1;
+            }
+            bits = starts[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+}
@@ -0,0 +1,263 @@
+package casson.regexp;
+
+import casson.regexp.DeterministicFSM.DeterministicState;
+import casson.regexp.FiniteStateMachine.State;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * This class represents a compiled DeterministicFSM.
+ * The states are numbered and the transitions are stored in a flat int table,
+ * one row per state and one column per character class.
+ *
+ * Characters that always go to the same states share a class, so the rows stay short.
+ * Class 0 holds every character that isn't in the expression.
+ * Matching walks the table in a loop, so it doesn't allocate, box characters or recurse.
+ *
+ * @author Chris Casson
+ */
+final class DFATable {
+
+    // the value in the table for a transition that goes to the "dead" state
+    static final int DEAD_STATE = -1;
+
+    final int stateCount;
+    final int initialState;
+
+    // classMap[character] is the character's class, characters past the end of the map are in class 0
+    final char[] classMap;
+    final int classCount;
+
+    // transitions[state * classCount + class] is the next state
+    final int[] transitions;
+    final boolean[] accepting;
+
+    // the patterns each state accepts, only set when the table is for a RegularExpressionSet
+    final BitSet[] acceptedPatterns;
+
+    /**
+     * Compiles the given DeterministicFSM into a table.
+     *
+     * @param fsm
+     */
+    DFATable(DeterministicFSM fsm) {
+        this(fsm, null);
+    }
+
+    /**
+     * Compiles the given DeterministicFSM into a table.
+     *
+     * @param fsm
+     * @param alphabet the alphabet the fsm's transitions are for, null if the expression doesn't have classes
+     */
+    DFATable(DeterministicFSM fsm, Alphabet alphabet) {
+        // number the states in the order they're reachable from the initial state
+        Map<State, Integer> stateNumbers = new IdentityHashMap<>();
+        List<DeterministicState> numberedStates = new ArrayList<>();
+        Deque<DeterministicState> worklist = new ArrayDeque<>();
+        TreeSet<Character> characters = new TreeSet<>();
+        stateNumbers.put(fsm.initialState, 0);
+        numberedStates.add((DeterministicState) fsm.initialState);
+        worklist.add((DeterministicState) fsm.initialState);
+        while (!worklist.isEmpty()) {
+            DeterministicState state = worklist.poll();
+            characters.addAll(state.transitions.keySet());
+            for (State nextState : state.transitions.values()) {
+                if (!stateNumbers.containsKey(nextState)) {
+                    stateNumbers.put(nextState, numberedStates.size());
+                    numberedStates.add((DeterministicState) nextState);
+                    worklist.add((DeterministicState) nextState);
+                }
+            }
+        }
+
+        stateCount = numberedStates.size();
+        initialState = 0;
+        accepting = new boolean[stateCount];
+        BitSet[] patterns = null;
+        for (int s = 0; s < stateCount; s++) {
+            DeterministicState state = numberedStates.get(s);
+            accepting[s] = state.acceptingState;
+            if (state.patterns != null) {
+                if (patterns == null) {
+                    patterns = new BitSet[stateCount];
+                }
+                patterns[s] = state.patterns;
+            }
+        }
+        acceptedPatterns = patterns;
+
+        // build the column of next states for each character in the expression,
+        // characters with the same column never distinguish states so they share a class
+        Map<IntArrayKey, Integer> columnClasses = new HashMap<>();
+        List<int[]> classColumns = new ArrayList<>();
+        
+        // class 0 is the "dead" column for characters that aren't in the expression
+        int[] deadColumn = new int[stateCount];
+        Arrays.fill(deadColumn, DEAD_STATE);
+        columnClasses.put(new IntArrayKey(deadColumn), 0);
+        classColumns.add(deadColumn);
+        
+        char[] characterClasses = new char[characters.isEmpty() ? 0 : characters.last() + 1];
+        for (Character character : characters) {
+            int[] column = new int[stateCount];
+            for (int s = 0; s < stateCount; s++) {
+                State nextState = numberedStates.get(s).transitions.get(character);
+                column[s] = nextState == null ? DEAD_STATE : stateNumbers.get(nextState);
+            }
+            
+            IntArrayKey key = new IntArrayKey(column);
+            Integer characterClass = columnClasses.get(key);
+            if (characterClass == null) {
+                characterClass = classColumns.size();
+                columnClasses.put(key, characterClass);
+                classColumns.add(column);
+            }
+            characterClasses[character] = (char) (int) characterClass;
+        }
+        
+        // the characters in each of the alphabet's ranges share their representative's class
+        classMap = alphabet == null ? characterClasses : alphabet.expand(characterClasses);
+
+        // lay the columns out as rows of the flat table
+        classCount = classColumns.size();
+        transitions = new int[stateCount * classCount];
+        for (int c = 0; c < classCount; c++) {
+            int[] column = classColumns.get(c);
+            for (int s = 0; s < stateCount; s++) {
+                transitions[s * classCount + c] = column[s];
+            }
+        }
+    }
+
+    /**
+     * Copies the table with the states renumbered.
+     *
+     * @param table
+     * @param order order[newState] is the state's number in the given table
+     */
+    DFATable(DFATable table, int[] order) {
+        stateCount = table.stateCount;
+        classMap = table.classMap;
+        classCount = table.classCount;
+        
+        int[] newNumbers = new int[stateCount];
+        for (int s = 0; s < stateCount; s++) {
+            newNumbers[order[s]] = s;
+        }
+        initialState = newNumbers[table.initialState];
+        
+        // move each row to its new place and renumber the states in it
+        transitions = new int[table.transitions.length];
+        accepting = new boolean[stateCount];
+        BitSet[] patterns = table.acceptedPatterns == null ? null : new BitSet[stateCount];
+        for (int s = 0; s < stateCount; s++) {
+            int old = order[s];
+            for (int c = 0; c < classCount; c++) {
+                int target = table.transitions[old * classCount + c];
+                transitions[s * classCount + c] = target == DEAD_STATE ? DEAD_STATE : newNumbers[target];
+            }
+            accepting[s] = table.accepting[old];
+            if (patterns != null) {
+                patterns[s] = table.acceptedPatterns[old];
+            }
+        }
+        acceptedPatterns = patterns;
+    }
+
+    /**
+     * 
+     * @param character
+     * @return the class of the character
+     */
+    int classOf(char character) {
+        return character < classMap.length ? classMap[character] : 0;
+    }
+
+    /**
+     *
+     * @param state
+     * @param character
+     * @return the state after reading character in the given state, or DEAD_STATE
+     */
+    int step(int state, char character) {
+        return transitions[state * classCount + classOf(character)];
+    }
+
+    /**
+     * Runs the table over input[from, to) starting in the given state.
+     *
+     * @param state the state to start in
+     * @param input
+     * @param from index of the first character to read
+     * @param to index after the last character to read
+     * @return the state after reading the input, or DEAD_STATE
+     */
+    int run(int state, CharSequence input, int from, int to) {
+        // local copies so the loop only touches registers and the two arrays
+        final int[] table = transitions;
+        final char[] map = classMap;
+        final int columns = classCount;
+
+        for (int i = from; i < to && state != DEAD_STATE; i++) {
+            char character = input.charAt(i);
+            state = table[state * columns + (character < map.length ? map[character] : 0)];
+        }
+        return state;
+    }
+
+    /**
+     * Runs the table over input[from, to) starting in the given state.
+     *
+     * @param state the state to start in
+     * @param input
+     * @param from index of the first character to read
+     * @param to index after the last character to read
+     * @return the state after reading the input, or DEAD_STATE
+     */
+    int run(int state, char[] input, int from, int to) {
+        final int[] table = transitions;
+        final char[] map = classMap;
+        final int columns = classCount;
+
+        for (int i = from; i < to && state != DEAD_STATE; i++) {
+            char character = input[i];
+            state = table[state * columns + (character < map.length ? map[character] : 0)];
+        }
+        return state;
+    }
+
+    /**
+     *
+     * @param state
+     * @return true if the state is accepting, otherwise false
+     */
+    boolean isAccepting(int state) {
+        return state != DEAD_STATE && accepting[state];
+    }
+
+    /**
+     *
+     * @param input
+     * @return true if the table accepts the input, otherwise false
+     */
+    boolean accepts(CharSequence input) {
+        return isAccepting(run(initialState, input, 0, input.length()));
+    }
+
+    /**
+     * 
+     * @return the number of bytes in the table's arrays
+     */
+    long getByteCount() {
+        return (long) Integer.BYTES * transitions.length + (long) Character.BYTES * classMap.length + accepting.length;
+    }
+}
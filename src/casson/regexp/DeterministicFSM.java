@@ -1,9 +1,17 @@
 package casson.regexp;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * This class represents a deterministic FSM.
@@ -20,6 +28,9 @@ class DeterministicFSM extends FiniteStateMachine {
 
         // map to hold the state's transitions
         Map<Character, State> transitions;
+        
+        // the patterns an accepting state accepts, only set when the fsm is for a RegularExpressionSet
+        BitSet patterns;
 
         DeterministicState() {
             transitions = new HashMap<>();
@@ -66,8 +77,465 @@ class DeterministicFSM extends FiniteStateMachine {
     State initialState;
     Collection<DeterministicState> states;
 
+    DeterministicFSM() {
+    }
+
+    /**
+     * Creates a deterministic FSM from a non-deterministic one using the subset construction.
+     * 
+     * Each deterministic state stands for a set of non-deterministic states.
+     * The sets are processed from a worklist, so every set is only expanded once.
+     * 
+     * @param nfa 
+     */
+    DeterministicFSM(NFATable nfa) {
+        this(nfa, false);
+    }
+
+    /**
+     * Creates a deterministic FSM from a non-deterministic one using the subset construction.
+     * 
+     * An unanchored FSM can start matching at any character,
+     * so the non-deterministic initial states are added to every set.
+     * Characters without a transition restart the unanchored FSM in its initial state instead of going to the "dead" state,
+     * it's up to the caller to do that.
+     * 
+     * @param nfa 
+     * @param unanchored true to allow matching to start anywhere in the input
+     */
+    DeterministicFSM(NFATable nfa, boolean unanchored) {
+        // each set is keyed by its state numbers, sorted and without duplicates
+        Map<IntArrayKey, DeterministicState> subsets = new HashMap<>();
+        Deque<IntArrayKey> worklist = new ArrayDeque<>();
+        states = new ArrayList<>();
+        
+        // the initial state is the set of initial states
+        int[] initialMembers = nfa.initialStates.clone();
+        Arrays.sort(initialMembers);
+        initialState = addSubset(nfa, subsets, worklist, new IntArrayKey(initialMembers));
+        
+        // an unanchored fsm restarts on characters that no state in the set has an edge for,
+        // so every state needs a transition for every character in the alphabet
+        char[] alphabet = unanchored ? nfa.getAlphabet() : new char[0];
+        
+        // edges (character << 32 | target) of the set being expanded
+        long[] edges = new long[16];
+        int[] targets = new int[nfa.stateCount];
+        int[] merged = new int[nfa.stateCount];
+        while (!worklist.isEmpty()) {
+            IntArrayKey key = worklist.poll();
+            DeterministicState state = subsets.get(key);
+            
+            // collect the edges of every state in the set
+            int edgeCount = 0;
+            for (int member : key.values) {
+                int end = nfa.edgeOffsets[member + 1];
+                for (int edge = nfa.edgeOffsets[member]; edge < end; edge++) {
+                    if (edgeCount == edges.length) {
+                        edges = Arrays.copyOf(edges, edgeCount * 2);
+                    }
+                    edges[edgeCount++] = ((long) nfa.edgeCharacters[edge] << 32) | nfa.edgeTargets[edge];
+                }
+            }
+            
+            // sorting groups the edges by character with the targets in order
+            Arrays.sort(edges, 0, edgeCount);
+            
+            int groupStart = 0;
+            while (groupStart < edgeCount) {
+                char character = (char) (edges[groupStart] >>> 32);
+                
+                // the targets for the character (without duplicates) are the next set
+                int targetCount = 0;
+                int groupEnd = groupStart;
+                while (groupEnd < edgeCount && (char) (edges[groupEnd] >>> 32) == character) {
+                    int target = (int) edges[groupEnd];
+                    if (targetCount == 0 || targets[targetCount - 1] != target) {
+                        targets[targetCount++] = target;
+                    }
+                    groupEnd++;
+                }
+                
+                IntArrayKey nextKey;
+                if (unanchored) {
+                    // merge in the initial states, both arrays are sorted
+                    int mergedCount = 0;
+                    int t = 0;
+                    int i = 0;
+                    while (t < targetCount || i < initialMembers.length) {
+                        int member;
+                        if (i == initialMembers.length || (t < targetCount && targets[t] < initialMembers[i])) {
+                            member = targets[t++];
+                        } else if (t == targetCount || initialMembers[i] < targets[t]) {
+                            member = initialMembers[i++];
+                        } else {
+                            member = targets[t++];
+                            i++;
+                        }
+                        merged[mergedCount++] = member;
+                    }
+                    nextKey = new IntArrayKey(Arrays.copyOf(merged, mergedCount));
+                } else {
+                    nextKey = new IntArrayKey(Arrays.copyOf(targets, targetCount));
+                }
+                DeterministicState nextState = subsets.get(nextKey);
+                if (nextState == null) {
+                    nextState = addSubset(nfa, subsets, worklist, nextKey);
+                }
+                state.addTransition(character, nextState);
+                
+                groupStart = groupEnd;
+            }
+            
+            for (char character : alphabet) {
+                if (!state.transitions.containsKey(character)) {
+                    state.addTransition(character, initialState);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Creates a deterministic FSM straight from the followpos sets of a syntax tree.
+     * 
+     * Each deterministic state stands for a set of positions: the positions just read, or position 0 at the start.
+     * Reading a character moves to the positions in their followpos that hold the character.
+     * 
+     * @param positions 
+     */
+    DeterministicFSM(FollowPositions positions) {
+        this(positions, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Creates a deterministic FSM straight from the followpos sets of a syntax tree,
+     * giving up once it has more than maxStates states.
+     * The caller checks states.size() to tell whether it gave up, the FSM is incomplete if it did.
+     * 
+     * @param positions 
+     * @param maxStates
+     */
+    DeterministicFSM(FollowPositions positions, int maxStates) {
+        Map<IntArrayKey, DeterministicState> subsets = new HashMap<>();
+        Deque<IntArrayKey> worklist = new ArrayDeque<>();
+        states = new ArrayList<>();
+        
+        initialState = addPositions(positions, subsets, worklist, new IntArrayKey(new int[] {0}));
+        
+        int[] targets = new int[positions.positionCount];
+        while (!worklist.isEmpty() && states.size() <= maxStates) {
+            IntArrayKey key = worklist.poll();
+            DeterministicState state = subsets.get(key);
+            int edgeCount = positions.collectEdges(key.values);
+            long[] edges = positions.edges;
+            
+            int groupStart = 0;
+            while (groupStart < edgeCount) {
+                char character = (char) (edges[groupStart] >>> 32);
+                
+                // the positions for the character (without duplicates) are the next set
+                int targetCount = 0;
+                int groupEnd = groupStart;
+                while (groupEnd < edgeCount && (char) (edges[groupEnd] >>> 32) == character) {
+                    int target = (int) edges[groupEnd];
+                    if (targetCount == 0 || targets[targetCount - 1] != target) {
+                        targets[targetCount++] = target;
+                    }
+                    groupEnd++;
+                }
+                
+                IntArrayKey nextKey = new IntArrayKey(Arrays.copyOf(targets, targetCount));
+                DeterministicState nextState = subsets.get(nextKey);
+                if (nextState == null) {
+                    nextState = addPositions(positions, subsets, worklist, nextKey);
+                }
+                state.addTransition(character, nextState);
+                
+                groupStart = groupEnd;
+            }
+        }
+    }
+    
+    /**
+     * Creates the deterministic state for a set of positions and adds it to the worklist.
+     */
+    private DeterministicState addPositions(FollowPositions positions, Map<IntArrayKey, DeterministicState> subsets, Deque<IntArrayKey> worklist, IntArrayKey key) {
+        DeterministicState state = new DeterministicState();
+        
+        // the state is accepting if the input can end after any position in the set
+        for (int member : key.values) {
+            if (positions.accepting[member]) {
+                state.acceptingState = true;
+                break;
+            }
+        }
+        
+        subsets.put(key, state);
+        states.add(state);
+        worklist.add(key);
+        return state;
+    }
+    
+    /**
+     * Creates the deterministic state for a set and adds it to the worklist.
+     */
+    private DeterministicState addSubset(NFATable nfa, Map<IntArrayKey, DeterministicState> subsets, Deque<IntArrayKey> worklist, IntArrayKey key) {
+        DeterministicState state = new DeterministicState();
+        
+        // the state is accepting if any state in the set is accepting
+        for (int member : key.values) {
+            if (nfa.accepting[member]) {
+                state.acceptingState = true;
+                
+                // keep track of which patterns it accepts when the table is for more than one
+                if (nfa.statePatterns != null) {
+                    if (state.patterns == null) {
+                        state.patterns = new BitSet();
+                    }
+                    state.patterns.set(nfa.statePatterns[member]);
+                }
+            }
+        }
+        
+        subsets.put(key, state);
+        states.add(state);
+        worklist.add(key);
+        return state;
+    }
+
     @Override
     Collection<State> getInitialStates() {
         return Arrays.asList(initialState);
     }
+
+    /**
+     * Creates a minimal FSM that accepts the same input as this FSM using Hopcroft's partition refinement.
+     * 
+     * States that can't reach an accepting state are removed, their transitions go to the "dead" state instead.
+     * This FSM isn't modified.
+     * 
+     * @return a new DeterministicFSM with the fewest states possible
+     */
+    DeterministicFSM minimize() {
+        // number the states reachable from the initial state and collect the alphabet
+        Map<State, Integer> stateNumbers = new IdentityHashMap<>();
+        List<DeterministicState> numberedStates = new ArrayList<>();
+        Deque<DeterministicState> worklist = new ArrayDeque<>();
+        TreeSet<Character> characters = new TreeSet<>();
+        stateNumbers.put(initialState, 0);
+        numberedStates.add((DeterministicState) initialState);
+        worklist.add((DeterministicState) initialState);
+        while (!worklist.isEmpty()) {
+            DeterministicState state = worklist.poll();
+            characters.addAll(state.transitions.keySet());
+            for (State nextState : state.transitions.values()) {
+                if (!stateNumbers.containsKey(nextState)) {
+                    stateNumbers.put(nextState, numberedStates.size());
+                    numberedStates.add((DeterministicState) nextState);
+                    worklist.add((DeterministicState) nextState);
+                }
+            }
+        }
+        
+        // the last state is an explicit dead state, so every state has a transition for every character
+        int stateCount = numberedStates.size() + 1;
+        int deadState = stateCount - 1;
+        Character[] alphabet = characters.toArray(new Character[characters.size()]);
+        int symbolCount = alphabet.length;
+        
+        // next[state * symbolCount + symbol] is the next state
+        int[] next = new int[stateCount * symbolCount];
+        Arrays.fill(next, deadState);
+        for (int s = 0; s < deadState; s++) {
+            Map<Character, State> transitions = numberedStates.get(s).transitions;
+            for (int a = 0; a < symbolCount; a++) {
+                State nextState = transitions.get(alphabet[a]);
+                if (nextState != null) {
+                    next[s * symbolCount + a] = stateNumbers.get(nextState);
+                }
+            }
+        }
+        
+        // build the inverse transitions, the predecessors of state t for symbol a are
+        // predecessors[predecessorOffsets[a * stateCount + t], predecessorOffsets[a * stateCount + t + 1])
+        int[] predecessorOffsets = new int[symbolCount * stateCount + 1];
+        for (int s = 0; s < stateCount; s++) {
+            for (int a = 0; a < symbolCount; a++) {
+                predecessorOffsets[a * stateCount + next[s * symbolCount + a] + 1]++;
+            }
+        }
+        for (int i = 1; i < predecessorOffsets.length; i++) {
+            predecessorOffsets[i] += predecessorOffsets[i - 1];
+        }
+        int[] predecessors = new int[stateCount * symbolCount];
+        int[] fill = Arrays.copyOf(predecessorOffsets, predecessorOffsets.length - 1);
+        for (int s = 0; s < stateCount; s++) {
+            for (int a = 0; a < symbolCount; a++) {
+                predecessors[fill[a * stateCount + next[s * symbolCount + a]]++] = s;
+            }
+        }
+        
+        // the partition is stored as a permutation of the states where each block is a contiguous range
+        int[] elements = new int[stateCount];
+        int[] location = new int[stateCount];
+        int[] blockOf = new int[stateCount];
+        int[] blockStart = new int[stateCount];
+        int[] blockEnd = new int[stateCount];
+        int[] marked = new int[stateCount];
+        int blockCount = 0;
+        
+        // the initial partition groups the states by what they accept,
+        // non-accepting states (including the dead state) together and accepting states by the patterns they accept
+        Map<Object, List<Integer>> initialBlocks = new LinkedHashMap<>();
+        for (int s = 0; s < stateCount; s++) {
+            Object accepts = Boolean.FALSE;
+            if (s != deadState && numberedStates.get(s).acceptingState) {
+                BitSet patterns = numberedStates.get(s).patterns;
+                accepts = patterns == null ? Boolean.TRUE : patterns;
+            }
+            List<Integer> block = initialBlocks.get(accepts);
+            if (block == null) {
+                block = new ArrayList<>();
+                initialBlocks.put(accepts, block);
+            }
+            block.add(s);
+        }
+        int position = 0;
+        int largestBlock = 0;
+        for (List<Integer> block : initialBlocks.values()) {
+            blockStart[blockCount] = position;
+            for (int s : block) {
+                elements[position] = s;
+                location[s] = position;
+                blockOf[s] = blockCount;
+                position++;
+            }
+            blockEnd[blockCount] = position;
+            if (block.size() > blockEnd[largestBlock] - blockStart[largestBlock]) {
+                largestBlock = blockCount;
+            }
+            blockCount++;
+        }
+        
+        // the splitters still to process, as (block, symbol) pairs
+        Deque<int[]> splitters = new ArrayDeque<>();
+        boolean[][] waiting = new boolean[stateCount][];
+        for (int b = 0; b < blockCount; b++) {
+            waiting[b] = new boolean[symbolCount];
+        }
+        
+        // every block except the largest one needs to be a splitter
+        for (int b = 0; b < blockCount; b++) {
+            if (b != largestBlock) {
+                for (int a = 0; a < symbolCount; a++) {
+                    splitters.add(new int[] {b, a});
+                    waiting[b][a] = true;
+                }
+            }
+        }
+        
+        int[] splitter = new int[stateCount];
+        int[] touched = new int[stateCount];
+        while (!splitters.isEmpty()) {
+            int[] pair = splitters.poll();
+            int splitterBlock = pair[0];
+            int a = pair[1];
+            waiting[splitterBlock][a] = false;
+            
+            // copy the splitter's states since marking moves states around inside their blocks
+            int splitterSize = blockEnd[splitterBlock] - blockStart[splitterBlock];
+            System.arraycopy(elements, blockStart[splitterBlock], splitter, 0, splitterSize);
+            
+            // mark every state that goes into the splitter on symbol a by moving it to the front of its block
+            int touchedCount = 0;
+            for (int i = 0; i < splitterSize; i++) {
+                int t = splitter[i];
+                for (int p = predecessorOffsets[a * stateCount + t]; p < predecessorOffsets[a * stateCount + t + 1]; p++) {
+                    int s = predecessors[p];
+                    int block = blockOf[s];
+                    int front = blockStart[block] + marked[block];
+                    if (location[s] >= front) {
+                        // swap s with the first unmarked state in the block
+                        int other = elements[front];
+                        elements[location[s]] = other;
+                        location[other] = location[s];
+                        elements[front] = s;
+                        location[s] = front;
+                        if (marked[block]++ == 0) {
+                            touched[touchedCount++] = block;
+                        }
+                    }
+                }
+            }
+            
+            // split each block that was only partly marked
+            for (int i = 0; i < touchedCount; i++) {
+                int block = touched[i];
+                int markedCount = marked[block];
+                marked[block] = 0;
+                if (markedCount == blockEnd[block] - blockStart[block]) {
+                    continue;
+                }
+                
+                // the marked states become a new block
+                int newBlock = blockCount++;
+                blockStart[newBlock] = blockStart[block];
+                blockEnd[newBlock] = blockStart[block] + markedCount;
+                blockStart[block] = blockEnd[newBlock];
+                for (int e = blockStart[newBlock]; e < blockEnd[newBlock]; e++) {
+                    blockOf[elements[e]] = newBlock;
+                }
+                waiting[newBlock] = new boolean[symbolCount];
+                
+                // if the old block was waiting both halves need to be, otherwise only the smaller half does
+                for (int c = 0; c < symbolCount; c++) {
+                    int add;
+                    if (waiting[block][c]) {
+                        add = newBlock;
+                    } else {
+                        add = markedCount <= blockEnd[block] - blockStart[block] ? newBlock : block;
+                    }
+                    splitters.add(new int[] {add, c});
+                    waiting[add][c] = true;
+                }
+            }
+        }
+        
+        // create a state for each block other than the dead state's block
+        int deadBlock = blockOf[deadState];
+        DeterministicState[] blockStates = new DeterministicState[blockCount];
+        DeterministicFSM fsm = new DeterministicFSM();
+        fsm.states = new ArrayList<>();
+        for (int b = 0; b < blockCount; b++) {
+            if (b != deadBlock) {
+                blockStates[b] = new DeterministicState();
+                blockStates[b].acceptingState = numberedStates.get(elements[blockStart[b]]).acceptingState;
+                blockStates[b].patterns = numberedStates.get(elements[blockStart[b]]).patterns;
+                fsm.states.add(blockStates[b]);
+            }
+        }
+        
+        // the transitions of any state in a block work for the whole block
+        for (int b = 0; b < blockCount; b++) {
+            if (b != deadBlock) {
+                int representative = elements[blockStart[b]];
+                for (int a = 0; a < symbolCount; a++) {
+                    int nextBlock = blockOf[next[representative * symbolCount + a]];
+                    if (nextBlock != deadBlock) {
+                        blockStates[b].addTransition(alphabet[a], blockStates[nextBlock]);
+                    }
+                }
+            }
+        }
+        
+        // if the initial state is dead the fsm doesn't accept anything, keep a single non-accepting state
+        if (blockStates[blockOf[0]] == null) {
+            DeterministicState emptyState = new DeterministicState();
+            fsm.states.add(emptyState);
+            fsm.initialState = emptyState;
+        } else {
+            fsm.initialState = blockStates[blockOf[0]];
+        }
+        return fsm;
+    }
 }
@@ -33,30 +33,33 @@ abstract class FiniteStateMachine {
      * @param input
      * @return true if this FSM accepts the input string, otherwise false
      */
-    boolean accepts(String input) {
+    boolean accepts(CharSequence input) {
         // call accepts with the input and the initial state(s)
-        return getInitialStates().stream().anyMatch(is -> accepts(input, is));
+        return getInitialStates().stream().anyMatch(is -> accepts(input, 0, is));
     }
     
-    private boolean accepts(String input, State currentState) {
-        if (currentState == null) {
-            // the FSM went to a "dead" state
-            return false;
-        } else if (input.isEmpty()) {
-            // the FSM finished processing the input
-            return currentState.acceptingState;
-        } else {
-            // get the next character
-            char nextChar = input.charAt(0);
-            
-            // remove the character from the input
-            String subString = input.substring(1);
-            
+    private boolean accepts(CharSequence input, int index, State currentState) {
+        // follow single transitions in a loop, only branching when there's more than one next state
+        while (currentState != null && index < input.length()) {
             // get the next states using the next character
-            Collection<State> nextStates = currentState.getNextStateInNonDeterministicForm(nextChar);
+            Collection<State> nextStates = currentState.getNextStateInNonDeterministicForm(input.charAt(index));
+            
+            // move past the character
+            index++;
             
-            // if nextChar didn't go to a dead state, recursively call accepts with the substring and the next state
-            return nextStates != null && nextStates.stream().anyMatch(s -> accepts(subString, s));
+            if (nextStates == null || nextStates.isEmpty()) {
+                // the FSM went to a "dead" state
+                return false;
+            } else if (nextStates.size() == 1) {
+                currentState = nextStates.iterator().next();
+            } else {
+                // try each next state with the rest of the input
+                final int nextIndex = index;
+                return nextStates.stream().anyMatch(s -> accepts(input, nextIndex, s));
+            }
         }
+        
+        // the FSM either went to a "dead" state or finished processing the input
+        return currentState != null && currentState.acceptingState;
     }
 }
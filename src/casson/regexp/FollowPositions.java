@@ -0,0 +1,233 @@
+package casson.regexp;
+
+import casson.regexp.RegularExpression.SyntaxTree;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * The followpos sets of a syntax tree, used to build a deterministic FSM straight from the tree.
+ *
+ * Every character literal and class in the expression is a position, numbered from 1 in left to right order,
+ * and position 0 stands for the start of the input. The nullable, firstpos and lastpos of each node are
+ * computed bottom up, and followpos(p) is the positions that can be read right after position p.
+ * A deterministic state is then a set of positions, so no non-deterministic states or transition maps are created.
+ *
+ * Position sets are never copied. A set is either a single position or the join of two sets,
+ * and because every position in a left subtree comes before every position in the right subtree
+ * a join lists its positions in order. Concatenation, union and closure only add a join or a link,
+ * so building the sets takes time in proportion to the tree plus the number of followpos links.
+ *
+ * @author Chris Casson
+ */
+final class FollowPositions {
+
+    // the number of positions, including position 0
+    final int positionCount;
+
+    // the character at each literal's position, position 0 has none
+    final char[] characters;
+    
+    // the representatives at each class's position, null if the tree doesn't have any classes
+    private final char[][] classCharacters;
+
+    // accepting[p] is true if the input can end after position p
+    final boolean[] accepting;
+
+    // set s is the single position setLeft[s] when setRight[s] is NO_SET, otherwise it's the join of the two sets
+    static final int NO_SET = -1;
+    int[] setLeft;
+    int[] setRight;
+    private int setCount;
+
+    // followpos(p) is the union of the sets linked from followHead[p], a link is followSet[link] and followNext[link]
+    final int[] followHead;
+    int[] followSet;
+    int[] followNext;
+    private int followCount;
+
+    // scratch stack for walking the joins of a set
+    private int[] walkStack = new int[16];
+
+    // the edges (character << 32 | position) found by the last call to collectEdges
+    long[] edges = new long[16];
+    private int edgeCount;
+    private final IntConsumer addEdge = this::addEdge;
+
+    /**
+     * Computes the followpos sets of the tree.
+     *
+     * @param tree
+     * @param alphabet the alphabet for the tree's classes, null if it doesn't have any
+     */
+    FollowPositions(SyntaxTree tree, Alphabet alphabet) {
+        positionCount = GlushkovAutomaton.countPositions(tree) + 1;
+        characters = new char[positionCount];
+        classCharacters = alphabet == null ? null : new char[positionCount][];
+        accepting = new boolean[positionCount];
+        followHead = new int[positionCount];
+        Arrays.fill(followHead, NO_SET);
+        setLeft = new int[positionCount * 2];
+        setRight = new int[positionCount * 2];
+        followSet = new int[positionCount];
+        followNext = new int[positionCount];
+
+        // each node's nullable, firstpos and lastpos are computed from its trees', which are on top of the stacks,
+        // and the post-order visits the literals from left to right so that's the order they're numbered in
+        int nodeCount = 0;
+        int[] firsts = new int[positionCount];
+        int[] lasts = new int[positionCount];
+        boolean[] nullables = new boolean[positionCount];
+        int nextPosition = 1;
+        for (SyntaxTree node : RegularExpression.postOrder(tree)) {
+            if (node.content == '*') {
+                // the firstpos of the closure can follow its lastpos
+                int left = nodeCount - 1;
+                addFollow(lasts[left], firsts[left]);
+                nullables[left] = true;
+            } else if (node.content == '+') {
+                // the same as the closure, but it only matches the empty string if the left does
+                int left = nodeCount - 1;
+                addFollow(lasts[left], firsts[left]);
+            } else if (node.content == '?') {
+                nullables[nodeCount - 1] = true;
+            } else if (node.content == SyntaxTree.CONCAT) {
+                int right = --nodeCount;
+                int left = nodeCount - 1;
+
+                // the firstpos of the right can follow the lastpos of the left
+                addFollow(lasts[left], firsts[right]);
+
+                if (nullables[left]) {
+                    firsts[left] = join(firsts[left], firsts[right]);
+                }
+                lasts[left] = nullables[right] ? join(lasts[left], lasts[right]) : lasts[right];
+                nullables[left] = nullables[left] && nullables[right];
+            } else if (node.content == '|') {
+                int right = --nodeCount;
+                int left = nodeCount - 1;
+                firsts[left] = join(firsts[left], firsts[right]);
+                lasts[left] = join(lasts[left], lasts[right]);
+                nullables[left] = nullables[left] || nullables[right];
+            } else {
+                // the node is a character literal or a class, give it the next position
+                int position = nextPosition++;
+                if (node.ranges != null) {
+                    classCharacters[position] = alphabet.representatives(node.ranges);
+                } else {
+                    characters[position] = node.content;
+                }
+                int set = single(position);
+                firsts[nodeCount] = set;
+                lasts[nodeCount] = set;
+                nullables[nodeCount] = false;
+                nodeCount++;
+            }
+        }
+
+        // the firstpos of the tree follows the start of the input
+        addFollow(single(0), firsts[0]);
+        accepting[0] = nullables[0];
+        forEach(lasts[0], position -> accepting[position] = true);
+    }
+
+    /**
+     * Collects the followpos of every position in the set into edges, sorted by character and then position.
+     *
+     * @param members the positions in a deterministic state
+     * @return the number of edges, which can include duplicates
+     */
+    int collectEdges(int[] members) {
+        edgeCount = 0;
+        for (int member : members) {
+            for (int link = followHead[member]; link != NO_SET; link = followNext[link]) {
+                forEach(followSet[link], addEdge);
+            }
+        }
+        
+        // sorting groups the edges by character with the positions in order
+        Arrays.sort(edges, 0, edgeCount);
+        return edgeCount;
+    }
+
+    /**
+     *
+     * @return the number of sets linked into followpos lists
+     */
+    int getFollowCount() {
+        return followCount;
+    }
+
+    private int single(int position) {
+        return newSet(position, NO_SET);
+    }
+
+    private int join(int left, int right) {
+        return newSet(left, right);
+    }
+
+    private int newSet(int left, int right) {
+        if (setCount == setLeft.length) {
+            setLeft = Arrays.copyOf(setLeft, setCount * 2);
+            setRight = Arrays.copyOf(setRight, setCount * 2);
+        }
+        setLeft[setCount] = left;
+        setRight[setCount] = right;
+        return setCount++;
+    }
+
+    /**
+     * Adds the to set to followpos(p) for every position p in the from set.
+     */
+    private void addFollow(int from, int to) {
+        forEach(from, position -> {
+            if (followCount == followSet.length) {
+                followSet = Arrays.copyOf(followSet, followCount * 2);
+                followNext = Arrays.copyOf(followNext, followCount * 2);
+            }
+            followSet[followCount] = to;
+            followNext[followCount] = followHead[position];
+            followHead[position] = followCount++;
+        });
+    }
+
+    private void addEdge(int position) {
+        char[] representatives = classCharacters == null ? null : classCharacters[position];
+        if (representatives == null) {
+            addEdge(characters[position], position);
+        } else {
+            for (char representative : representatives) {
+                addEdge(representative, position);
+            }
+        }
+    }
+
+    private void addEdge(char character, int position) {
+        if (edgeCount == edges.length) {
+            edges = Arrays.copyOf(edges, edgeCount * 2);
+        }
+        edges[edgeCount++] = ((long) character << 32) | position;
+    }
+
+    /**
+     * Runs the action for every position in the set, in order.
+     */
+    private void forEach(int set, IntConsumer action) {
+        // walk the joins with a stack, the tree of joins can be as deep as the expression is long
+        int[] stack = walkStack;
+        stack[0] = set;
+        int depth = 1;
+        while (depth > 0) {
+            int top = stack[--depth];
+            if (setRight[top] == NO_SET) {
+                action.accept(setLeft[top]);
+            } else {
+                if (depth + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[depth++] = setRight[top];
+                stack[depth++] = setLeft[top];
+            }
+        }
+        walkStack = stack;
+    }
+}
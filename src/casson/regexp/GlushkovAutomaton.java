@@ -0,0 +1,147 @@
+package casson.regexp;
+
+import casson.regexp.RegularExpression.SyntaxTree;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * The position (Glushkov) automaton of a syntax tree.
+ * 
+ * Every character literal and class in the expression is a position, numbered from left to right.
+ * The automaton has a state for each position plus the initial state, and no epsilon transitions:
+ * reading a character moves from a position to the positions that can follow it and hold that character.
+ * It's built straight from the tree by computing which positions can start, end and follow each subtree.
+ *
+ * @author Chris Casson
+ */
+final class GlushkovAutomaton {
+
+    final int positionCount;
+    
+    // the characters each position matches, a literal's character or the representatives of a class
+    final char[][] positionCharacters;
+    
+    // the alphabet the classes' representatives are from, null if the tree doesn't have any classes
+    final Alphabet alphabet;
+    
+    // whether the expression matches the empty string
+    final boolean nullable;
+    
+    // the positions that can be read first and last
+    final BitSet first;
+    final BitSet last;
+    
+    // follow[p] is the positions that can be read right after position p
+    final BitSet[] follow;
+
+    /**
+     * The nullable, first and last of a subtree.
+     */
+    private static final class Subtree {
+
+        private final boolean nullable;
+        private final BitSet first;
+        private final BitSet last;
+
+        private Subtree(boolean nullable, BitSet first, BitSet last) {
+            this.nullable = nullable;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Builds the automaton for the tree.
+     * 
+     * @param tree
+     * @param alphabet the alphabet for the tree's classes, null if it doesn't have any
+     */
+    GlushkovAutomaton(SyntaxTree tree, Alphabet alphabet) {
+        positionCount = countPositions(tree);
+        positionCharacters = new char[positionCount][];
+        this.alphabet = alphabet;
+        follow = new BitSet[positionCount];
+        for (int p = 0; p < positionCount; p++) {
+            follow[p] = new BitSet(positionCount);
+        }
+        
+        // each node's subtree is built from its trees' subtrees, which are on top of the stack,
+        // and the post-order visits the literals from left to right so that's the order they're numbered in
+        Deque<Subtree> subtrees = new ArrayDeque<>();
+        int nextPosition = 0;
+        for (SyntaxTree node : RegularExpression.postOrder(tree)) {
+            if (node.content == '*') {
+                // the first positions of the closure can follow its last positions
+                Subtree left = subtrees.pop();
+                addFollow(left.last, left.first);
+                subtrees.push(new Subtree(true, left.first, left.last));
+            } else if (node.content == '+') {
+                // the same as the closure, but it only matches the empty string if the left does
+                Subtree left = subtrees.pop();
+                addFollow(left.last, left.first);
+                subtrees.push(left);
+            } else if (node.content == '?') {
+                Subtree left = subtrees.pop();
+                subtrees.push(new Subtree(true, left.first, left.last));
+            } else if (node.content == SyntaxTree.CONCAT) {
+                Subtree right = subtrees.pop();
+                Subtree left = subtrees.pop();
+                
+                // the first positions of the right can follow the last positions of the left
+                addFollow(left.last, right.first);
+
+                BitSet concatFirst = (BitSet) left.first.clone();
+                if (left.nullable) {
+                    concatFirst.or(right.first);
+                }
+                BitSet concatLast = (BitSet) right.last.clone();
+                if (right.nullable) {
+                    concatLast.or(left.last);
+                }
+                subtrees.push(new Subtree(left.nullable && right.nullable, concatFirst, concatLast));
+            } else if (node.content == '|') {
+                Subtree right = subtrees.pop();
+                Subtree left = subtrees.pop();
+                BitSet unionFirst = (BitSet) left.first.clone();
+                unionFirst.or(right.first);
+                BitSet unionLast = (BitSet) left.last.clone();
+                unionLast.or(right.last);
+                subtrees.push(new Subtree(left.nullable || right.nullable, unionFirst, unionLast));
+            } else {
+                // the node is a character literal or a class, give it the next position
+                int position = nextPosition++;
+                positionCharacters[position] = node.ranges != null ? alphabet.representatives(node.ranges) : new char[] {node.content};
+                BitSet only = new BitSet(positionCount);
+                only.set(position);
+                subtrees.push(new Subtree(false, only, only));
+            }
+        }
+        
+        Subtree root = subtrees.pop();
+        nullable = root.nullable;
+        first = root.first;
+        last = root.last;
+    }
+
+    /**
+     * 
+     * @param tree
+     * @return the number of character literals and classes in the tree
+     */
+    static int countPositions(SyntaxTree tree) {
+        int count = 0;
+        for (SyntaxTree node : RegularExpression.postOrder(tree)) {
+            if (node.isPosition()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void addFollow(BitSet from, BitSet to) {
+        for (int p = from.nextSetBit(0); p >= 0; p = from.nextSetBit(p + 1)) {
+            follow[p].or(to);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package casson.regexp;
+
+import java.nio.CharBuffer;
+
+/**
+ * Matches input against a RegularExpression a piece at a time.
+ * 
+ * Input is fed in as it arrives and only the current state is kept between calls,
+ * so arbitrarily long input can be checked in constant memory.
+ * A matcher isn't thread safe, each thread should get its own from RegularExpression.matcher().
+ *
+ * @author Chris Casson
+ */
+public class IncrementalMatcher {
+
+    // only one of these is set, depending on whether the expression was determinized
+    private final DFATable table;
+    private final NFASimulator simulator;
+    
+    private int state;
+
+    IncrementalMatcher(DFATable table) {
+        this.table = table;
+        this.simulator = null;
+        reset();
+    }
+
+    IncrementalMatcher(NFATable nonDeterministicTable) {
+        this.table = null;
+        this.simulator = new NFASimulator(nonDeterministicTable);
+        reset();
+    }
+
+    /**
+     * Discards the input fed so far.
+     * 
+     * @return this matcher
+     */
+    public IncrementalMatcher reset() {
+        if (table != null) {
+            state = table.initialState;
+        } else {
+            simulator.reset();
+        }
+        return this;
+    }
+
+    /**
+     * 
+     * @param input
+     * @param offset index of the first character to feed
+     * @param length number of characters to feed
+     * @return this matcher
+     */
+    public IncrementalMatcher feed(char[] input, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > input.length - length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", array length " + input.length);
+        }
+        if (table != null) {
+            state = table.run(state, input, offset, offset + length);
+        } else {
+            simulator.run(input, offset, offset + length);
+        }
+        return this;
+    }
+
+    /**
+     * 
+     * @param input
+     * @return this matcher
+     */
+    public IncrementalMatcher feed(char[] input) {
+        return feed(input, 0, input.length);
+    }
+
+    /**
+     * Feeds the remaining characters in the buffer. The buffer's position is moved to its limit.
+     * 
+     * @param input
+     * @return this matcher
+     */
+    public IncrementalMatcher feed(CharBuffer input) {
+        if (input.hasArray()) {
+            int offset = input.arrayOffset() + input.position();
+            feed(input.array(), offset, input.remaining());
+        } else {
+            // charAt is relative to the buffer's position
+            feed(input, 0, input.remaining());
+        }
+        input.position(input.limit());
+        return this;
+    }
+
+    /**
+     * 
+     * @param input
+     * @param from index of the first character to feed
+     * @param to index after the last character to feed
+     * @return this matcher
+     */
+    public IncrementalMatcher feed(CharSequence input, int from, int to) {
+        if (from < 0 || from > to || to > input.length()) {
+            throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + input.length());
+        }
+        if (table != null) {
+            state = table.run(state, input, from, to);
+        } else {
+            simulator.run(input, from, to);
+        }
+        return this;
+    }
+
+    /**
+     * 
+     * @param input
+     * @return this matcher
+     */
+    public IncrementalMatcher feed(CharSequence input) {
+        return feed(input, 0, input.length());
+    }
+
+    /**
+     * 
+     * @return true if the input fed so far matches the regular expression, otherwise false
+     */
+    public boolean accepts() {
+        if (table != null) {
+            return table.isAccepting(state);
+        } else {
+            return simulator.isAccepting();
+        }
+    }
+
+    /**
+     * Once the matcher is dead, no more input can make it accept, so feeding can stop early.
+     * 
+     * @return true if the input fed so far isn't the start of anything the regular expression matches
+     */
+    public boolean isDead() {
+        if (table != null) {
+            return state == DFATable.DEAD_STATE;
+        } else {
+            return simulator.isDead();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package casson.regexp;
+
+import java.util.Arrays;
+
+/**
+ * Wraps an int array so it can be used as a map key, with its hash code computed up front.
+ * The array must not be changed after the key is created.
+ *
+ * @author Chris Casson
+ */
+final class IntArrayKey {
+
+    final int[] values;
+    private final int hash;
+
+    IntArrayKey(int[] values) {
+        this.values = values;
+        this.hash = Arrays.hashCode(values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final IntArrayKey other = (IntArrayKey) obj;
+        return hash == other.hash && Arrays.equals(values, other.values);
+    }
+}
@@ -0,0 +1,229 @@
+package casson.regexp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class builds the deterministic states of an NFATable only when the input first reaches them.
+ * 
+ * The states that have been built are cached along with the transitions that have been followed.
+ * When the cache grows past its memory budget it's cleared and rebuilt from whatever input comes next.
+ * If the cache keeps getting cleared without doing much work in between,
+ * the rest of the input is matched by simulating the NFATable instead.
+ * 
+ * A LazyDFA isn't thread safe, each thread should create its own.
+ *
+ * @author Chris Casson
+ */
+final class LazyDFA {
+
+    // a transition that hasn't been followed yet
+    private static final int UNKNOWN_STATE = -2;
+    
+    // rough number of bytes a cached state costs besides its row and members
+    private static final int STATE_OVERHEAD = 96;
+    
+    // a clear is thrashing if fewer than this many characters per cached state were matched since the last one
+    private static final int CHARACTERS_PER_STATE = 10;
+
+    private final NFATable nfa;
+    private final long budget;
+
+    // classMap[character] is the character's class, class 0 is every character without an edge
+    private final char[] classMap;
+    private final char[] classCharacters;
+    private final int classCount;
+
+    // the cached states, each one with its NFA state set and its row of transitions
+    private final Map<IntArrayKey, Integer> stateNumbers = new HashMap<>();
+    private int[][] members = new int[16][];
+    private int[][] rows = new int[16][];
+    private boolean[] accepting = new boolean[16];
+    private int stateCount;
+    private long usedBytes;
+    
+    // scratch space for computing the next set
+    private final int[] nextMembers;
+    private final boolean[] inNext;
+    
+    private int clearCount;
+    private long charactersSinceClear;
+    private boolean thrashing;
+    private NFASimulator simulator;
+
+    /**
+     * 
+     * @param nfa the table to build states from
+     * @param budget the number of bytes the cached states can use before the cache is cleared
+     */
+    LazyDFA(NFATable nfa, long budget) {
+        this.nfa = nfa;
+        this.budget = budget;
+        
+        // each character with an edge gets its own class
+        char[] alphabet = nfa.getAlphabet();
+        classCount = alphabet.length + 1;
+        classCharacters = new char[classCount];
+        char[] characterClasses = new char[alphabet.length == 0 ? 0 : alphabet[alphabet.length - 1] + 1];
+        for (int i = 0; i < alphabet.length; i++) {
+            classCharacters[i + 1] = alphabet[i];
+            characterClasses[alphabet[i]] = (char) (i + 1);
+        }
+        
+        // the characters in each of the alphabet's ranges share their representative's class
+        classMap = nfa.alphabet == null ? characterClasses : nfa.alphabet.expand(characterClasses);
+        
+        nextMembers = new int[nfa.stateCount];
+        inNext = new boolean[nfa.stateCount];
+    }
+
+    /**
+     *
+     * @param input
+     * @return true if the table accepts the input, otherwise false
+     */
+    boolean accepts(CharSequence input) {
+        thrashing = false;
+        
+        int[] initialMembers = nfa.initialStates.clone();
+        Arrays.sort(initialMembers);
+        int state = addState(initialMembers);
+        
+        for (int i = 0, length = input.length(); i < length; i++) {
+            char character = input.charAt(i);
+            int characterClass = character < classMap.length ? classMap[character] : 0;
+            
+            int next = rows[state][characterClass];
+            if (next == UNKNOWN_STATE) {
+                int[] stateMembers = members[state];
+                next = computeNext(state, characterClass);
+                
+                if (thrashing) {
+                    // finish the input by simulating the nfa from the state the cache gave up on
+                    if (simulator == null) {
+                        simulator = new NFASimulator(nfa);
+                    }
+                    simulator.reset(stateMembers);
+                    simulator.run(input, i, length);
+                    return simulator.isAccepting();
+                }
+            }
+            if (next == DFATable.DEAD_STATE) {
+                return false;
+            }
+            state = next;
+            charactersSinceClear++;
+        }
+        return accepting[state];
+    }
+
+    /**
+     * Builds the transition from state for the character class and caches it.
+     * 
+     * @return the next state, or DEAD_STATE
+     */
+    private int computeNext(int state, int characterClass) {
+        // follow the edges for the character from every state in the set
+        char character = classCharacters[characterClass];
+        int count = 0;
+        for (int member : members[state]) {
+            int end = nfa.edgeOffsets[member + 1];
+            for (int edge = nfa.firstEdge(member, character); edge < end && nfa.edgeCharacters[edge] == character; edge++) {
+                int target = nfa.edgeTargets[edge];
+                if (!inNext[target]) {
+                    inNext[target] = true;
+                    nextMembers[count++] = target;
+                }
+            }
+        }
+        if (count == 0) {
+            rows[state][characterClass] = DFATable.DEAD_STATE;
+            return DFATable.DEAD_STATE;
+        }
+        
+        int[] next = Arrays.copyOf(nextMembers, count);
+        for (int target : next) {
+            inNext[target] = false;
+        }
+        Arrays.sort(next);
+        
+        int rowBytes = classCount * 4 + next.length * 4 + STATE_OVERHEAD;
+        if (!stateNumbers.containsKey(new IntArrayKey(next)) && usedBytes + rowBytes > budget) {
+            // the cache is full, start again with just the next state
+            if (clearCount > 0 && charactersSinceClear < (long) CHARACTERS_PER_STATE * stateCount) {
+                thrashing = true;
+                return DFATable.DEAD_STATE;
+            }
+            clear();
+            return addState(next);
+        }
+        
+        int nextState = addState(next);
+        rows[state][characterClass] = nextState;
+        return nextState;
+    }
+
+    /**
+     * Looks up the state for the set, creating and caching it if it doesn't exist.
+     * 
+     * @return the state's number
+     */
+    private int addState(int[] set) {
+        IntArrayKey key = new IntArrayKey(set);
+        Integer existing = stateNumbers.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        
+        if (stateCount == rows.length) {
+            members = Arrays.copyOf(members, stateCount * 2);
+            rows = Arrays.copyOf(rows, stateCount * 2);
+            accepting = Arrays.copyOf(accepting, stateCount * 2);
+        }
+        int state = stateCount++;
+        members[state] = set;
+        rows[state] = new int[classCount];
+        Arrays.fill(rows[state], UNKNOWN_STATE);
+        
+        // class 0 doesn't have any edges
+        rows[state][0] = DFATable.DEAD_STATE;
+        for (int member : set) {
+            accepting[state] |= nfa.accepting[member];
+        }
+        
+        stateNumbers.put(key, state);
+        usedBytes += classCount * 4 + set.length * 4 + STATE_OVERHEAD;
+        return state;
+    }
+
+    /**
+     * Throws away every cached state.
+     */
+    private void clear() {
+        stateNumbers.clear();
+        Arrays.fill(members, 0, stateCount, null);
+        Arrays.fill(rows, 0, stateCount, null);
+        Arrays.fill(accepting, 0, stateCount, false);
+        stateCount = 0;
+        usedBytes = 0;
+        clearCount++;
+        charactersSinceClear = 0;
+    }
+
+    /**
+     * 
+     * @return the number of states in the cache
+     */
+    int getStateCount() {
+        return stateCount;
+    }
+
+    /**
+     * 
+     * @return the number of times the cache has been cleared
+     */
+    int getClearCount() {
+        return clearCount;
+    }
+}
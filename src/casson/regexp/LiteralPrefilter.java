@@ -0,0 +1,215 @@
+package casson.regexp;
+
+import casson.regexp.RegularExpression.SyntaxTree;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * The literals every match of an expression has to contain, used to rule out input before running the automaton.
+ * 
+ * The prefix is a literal every match starts with and the required literal is the longest literal every match contains.
+ * In a(bc)*bcx every match starts with "a" and contains "bcx".
+ * Searching for a literal skips through the input with a Horspool shift table, which is much faster than stepping
+ * the automaton a character at a time, so input without the literal is rejected without running the automaton at all.
+ *
+ * @author Chris Casson
+ */
+final class LiteralPrefilter {
+
+    // literals shorter than this aren't worth searching for on their own
+    private static final int MIN_REQUIRED_LENGTH = 2;
+    
+    // longer literals don't rule out any more input
+    private static final int MAX_LITERAL_LENGTH = 256;
+
+    /**
+     * What's known about the strings a subtree matches.
+     */
+    private static final class Literals {
+
+        // the only string the subtree matches, or null if it matches more than one
+        private final String exact;
+        private final String prefix;
+        private final String suffix;
+        private final String required;
+
+        private Literals(String exact, String prefix, String suffix, String required) {
+            // part of a literal is still a literal, cutting them short keeps long concatenations from copying quadratically
+            if (exact != null && exact.length() > MAX_LITERAL_LENGTH) {
+                exact = null;
+            }
+            this.exact = exact;
+            this.prefix = prefix.length() > MAX_LITERAL_LENGTH ? prefix.substring(0, MAX_LITERAL_LENGTH) : prefix;
+            this.suffix = suffix.length() > MAX_LITERAL_LENGTH ? suffix.substring(suffix.length() - MAX_LITERAL_LENGTH) : suffix;
+            this.required = required.length() > MAX_LITERAL_LENGTH ? required.substring(0, MAX_LITERAL_LENGTH) : required;
+        }
+    }
+
+    final String prefix;
+    final String required;
+    
+    // shift[character & 0xFF] is how far the required literal can move when character is under its last character
+    private final int[] shift;
+
+    private LiteralPrefilter(String prefix, String required) {
+        this.prefix = prefix;
+        this.required = required;
+        
+        // characters that share the low byte share a shift, so it has to be the smallest of theirs
+        shift = new int[256];
+        Arrays.fill(shift, required.length());
+        for (int i = 0; i < required.length() - 1; i++) {
+            shift[required.charAt(i) & 0xFF] = required.length() - 1 - i;
+        }
+    }
+
+    /**
+     * 
+     * @param tree
+     * @return the prefilter for the tree, or null if matches don't have to contain a literal
+     */
+    static LiteralPrefilter of(SyntaxTree tree) {
+        Literals literals = analyze(tree);
+        if (literals.prefix.isEmpty() && literals.required.length() < MIN_REQUIRED_LENGTH) {
+            return null;
+        }
+        return new LiteralPrefilter(literals.prefix, literals.required);
+    }
+
+    private static Literals analyze(SyntaxTree tree) {
+        // each node's literals are built from its trees' literals, which are on top of the stack
+        Deque<Literals> stack = new ArrayDeque<>();
+        for (SyntaxTree node : RegularExpression.postOrder(tree)) {
+            if (node.content == '*' || node.content == '?') {
+                // a closure or an optional can match the empty string, so nothing is required
+                stack.pop();
+                stack.push(new Literals(null, "", "", ""));
+            } else if (node.content == '+') {
+                // every match starts, ends and contains what one copy does
+                Literals left = stack.pop();
+                stack.push(new Literals(null, left.prefix, left.suffix, left.required));
+            } else if (node.ranges != null) {
+                // a class matches more than one character, so nothing is known about it
+                stack.push(new Literals(null, "", "", ""));
+            } else if (node.content == SyntaxTree.CONCAT) {
+                Literals right = stack.pop();
+                Literals left = stack.pop();
+
+                String exact = left.exact != null && right.exact != null ? left.exact + right.exact : null;
+                String concatPrefix = left.exact != null ? left.exact + right.prefix : left.prefix;
+                String concatSuffix = right.exact != null ? left.suffix + right.exact : right.suffix;
+
+                // the literal can be inside either side or where the two sides meet
+                String concatRequired = longest(left.required, right.required, left.suffix + right.prefix);
+                stack.push(new Literals(exact, concatPrefix, concatSuffix, concatRequired));
+            } else if (node.content == '|') {
+                Literals right = stack.pop();
+                Literals left = stack.pop();
+                if (left.exact != null && left.exact.equals(right.exact)) {
+                    stack.push(left);
+                } else {
+                    // only what both sides start or end with is known
+                    String unionPrefix = commonPrefix(left.prefix, right.prefix);
+                    String unionSuffix = commonSuffix(left.suffix, right.suffix);
+                    stack.push(new Literals(null, unionPrefix, unionSuffix, longest(unionPrefix, unionSuffix, "")));
+                }
+            } else {
+                // the node content is a character literal
+                String literal = String.valueOf(node.content);
+                stack.push(new Literals(literal, literal, literal, literal));
+            }
+        }
+        return stack.pop();
+    }
+
+    private static String longest(String a, String b, String c) {
+        String result = a.length() >= b.length() ? a : b;
+        return result.length() >= c.length() ? result : c;
+    }
+
+    private static String commonPrefix(String a, String b) {
+        int length = 0;
+        while (length < a.length() && length < b.length() && a.charAt(length) == b.charAt(length)) {
+            length++;
+        }
+        return a.substring(0, length);
+    }
+
+    private static String commonSuffix(String a, String b) {
+        int length = 0;
+        while (length < a.length() && length < b.length()
+                && a.charAt(a.length() - 1 - length) == b.charAt(b.length() - 1 - length)) {
+            length++;
+        }
+        return a.substring(a.length() - length);
+    }
+
+    /**
+     * 
+     * @param input
+     * @return false if the input can't be matched by the expression as a whole, true if it might be
+     */
+    boolean mayAccept(CharSequence input) {
+        // a match of the whole input starts at 0, so only the prefix needs to be compared
+        if (input.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (input.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return required.length() <= prefix.length() || indexOfRequired(input, 0) != -1;
+    }
+
+    /**
+     * 
+     * @param input
+     * @param from
+     * @return the first index at or after from where a match could start, or -1 if there can't be a match
+     */
+    int firstCandidate(CharSequence input, int from) {
+        if (!required.isEmpty() && indexOfRequired(input, from) == -1) {
+            return -1;
+        }
+        if (prefix.isEmpty()) {
+            return from;
+        }
+        return input instanceof String ? ((String) input).indexOf(prefix, from) : indexOf(input, prefix, from);
+    }
+
+    private int indexOfRequired(CharSequence input, int from) {
+        if (input instanceof String) {
+            return ((String) input).indexOf(required, from);
+        }
+        
+        // Horspool: compare from the end of the literal and shift by the character under its last character
+        int last = required.length() - 1;
+        int end = input.length() - last;
+        for (int i = from; i < end; i += shift[input.charAt(i + last) & 0xFF]) {
+            int k = last;
+            while (k >= 0 && input.charAt(i + k) == required.charAt(k)) {
+                k--;
+            }
+            if (k < 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(CharSequence input, String literal, int from) {
+        int end = input.length() - literal.length();
+        for (int i = from; i <= end; i++) {
+            int k = 0;
+            while (k < literal.length() && input.charAt(i + k) == literal.charAt(k)) {
+                k++;
+            }
+            if (k == literal.length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,223 @@
+package casson.regexp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A DFATable stored in a file and read through a memory mapped buffer.
+ * 
+ * The file is mapped read only and matching reads the transitions straight out of the mapping,
+ * so loading doesn't copy or parse the table and processes that map the same file share the pages.
+ * 
+ * The file is big endian and laid out as:
+ * 
+ * int magic, int version, int stateCount, int initialState, int classCount, int classMapLength, int expressionLength
+ * int[stateCount * classCount] transitions
+ * char[classMapLength] classMap
+ * char[expressionLength] expression
+ * byte[(stateCount + 7) / 8] accepting states, one bit per state with the lowest state in the lowest bit
+ *
+ * @author Chris Casson
+ */
+final class MappedDFATable {
+
+    // "CDFA"
+    static final int MAGIC = 0x43444641;
+    static final int VERSION = 1;
+    
+    private static final int HEADER_BYTES = 7 * Integer.BYTES;
+
+    final int stateCount;
+    final int initialState;
+    final int classCount;
+    
+    // the expression the table was compiled from
+    final String expression;
+    
+    // the size of the table in the file
+    final long byteCount;
+
+    // views of the mapped file, only absolute gets are used so they can be shared between threads
+    private final IntBuffer transitions;
+    private final CharBuffer classMap;
+    private final ByteBuffer accepting;
+    private final int classMapLength;
+
+    /**
+     * Reads the table out of a buffer in the file format.
+     * 
+     * @param buffer
+     * @throws IOException if the buffer doesn't hold a table in this version of the format,
+     * or any transition or character class is out of range
+     */
+    MappedDFATable(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a compiled regular expression.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported compiled regular expression version " + buffer.getInt(4) + ".");
+        }
+        
+        stateCount = buffer.getInt(8);
+        initialState = buffer.getInt(12);
+        classCount = buffer.getInt(16);
+        classMapLength = buffer.getInt(20);
+        int expressionLength = buffer.getInt(24);
+        
+        // check the sizes before slicing so a truncated file fails here instead of while matching
+        long transitionsBytes = (long) stateCount * classCount * Integer.BYTES;
+        long classMapBytes = (long) classMapLength * Character.BYTES;
+        long expressionBytes = (long) expressionLength * Character.BYTES;
+        long acceptingBytes = (stateCount + 7L) / 8;
+        if (stateCount < 1 || classCount < 1 || classMapLength < 0 || expressionLength < 1
+                || initialState < 0 || initialState >= stateCount
+                || HEADER_BYTES + transitionsBytes + classMapBytes + expressionBytes + acceptingBytes > buffer.remaining()) {
+            throw new IOException("Compiled regular expression is corrupt.");
+        }
+        
+        int offset = HEADER_BYTES;
+        transitions = slice(buffer, offset, (int) transitionsBytes).asIntBuffer();
+        offset += transitionsBytes;
+        classMap = slice(buffer, offset, (int) classMapBytes).asCharBuffer();
+        offset += classMapBytes;
+        expression = slice(buffer, offset, (int) expressionBytes).asCharBuffer().toString();
+        offset += expressionBytes;
+        accepting = slice(buffer, offset, (int) acceptingBytes);
+        byteCount = offset + acceptingBytes;
+        
+        // check every entry once here so matching can index with them without checking
+        for (int i = 0, length = transitions.limit(); i < length; i++) {
+            int target = transitions.get(i);
+            if (target != DFATable.DEAD_STATE && (target < 0 || target >= stateCount)) {
+                throw new IOException("Compiled regular expression is corrupt, transition " + i + " goes to state " + target + ".");
+            }
+        }
+        for (int character = 0; character < classMapLength; character++) {
+            if (classMap.get(character) >= classCount) {
+                throw new IOException("Compiled regular expression is corrupt, character " + character + " is in class " + (int) classMap.get(character) + ".");
+            }
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(buffer.position() + offset);
+        duplicate.limit(buffer.position() + offset + length);
+        return duplicate.slice();
+    }
+
+    /**
+     * Maps the file read only. The channel is closed once the file is mapped, the mapping stays valid until it's collected.
+     * 
+     * @param path
+     * @return the table stored in the file
+     * @throws IOException if the file can't be read or doesn't hold a table
+     */
+    static MappedDFATable map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedDFATable(buffer);
+        }
+    }
+
+    /**
+     * Writes the table in the file format.
+     * 
+     * @param table
+     * @param expression the expression the table was compiled from
+     * @param out
+     * @throws IOException
+     */
+    static void write(DFATable table, String expression, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(table.stateCount);
+        data.writeInt(table.initialState);
+        data.writeInt(table.classCount);
+        data.writeInt(table.classMap.length);
+        data.writeInt(expression.length());
+        for (int transition : table.transitions) {
+            data.writeInt(transition);
+        }
+        for (char characterClass : table.classMap) {
+            data.writeChar(characterClass);
+        }
+        data.writeChars(expression);
+        
+        // pack the accepting states 8 to a byte
+        byte[] acceptingBits = new byte[(table.stateCount + 7) / 8];
+        for (int s = 0; s < table.stateCount; s++) {
+            if (table.accepting[s]) {
+                acceptingBits[s >>> 3] |= 1 << (s & 7);
+            }
+        }
+        data.write(acceptingBits);
+        data.flush();
+    }
+
+    /**
+     * Writes the table to a file, replacing the file if it exists.
+     * 
+     * @param table
+     * @param expression the expression the table was compiled from
+     * @param path
+     * @throws IOException
+     */
+    static void write(DFATable table, String expression, Path path) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path)) {
+            write(table, expression, out);
+        }
+    }
+
+    /**
+     * Runs the table over input[from, to) starting in the given state.
+     *
+     * @param state the state to start in
+     * @param input
+     * @param from index of the first character to read
+     * @param to index after the last character to read
+     * @return the state after reading the input, or DFATable.DEAD_STATE
+     */
+    int run(int state, CharSequence input, int from, int to) {
+        // local copies so the loop only touches registers and the two buffers
+        final IntBuffer table = transitions;
+        final CharBuffer map = classMap;
+        final int mapLength = classMapLength;
+        final int columns = classCount;
+
+        for (int i = from; i < to && state != DFATable.DEAD_STATE; i++) {
+            char character = input.charAt(i);
+            state = table.get(state * columns + (character < mapLength ? map.get(character) : 0));
+        }
+        return state;
+    }
+
+    /**
+     *
+     * @param state
+     * @return true if the state is accepting, otherwise false
+     */
+    boolean isAccepting(int state) {
+        return state != DFATable.DEAD_STATE && (accepting.get(state >>> 3) & (1 << (state & 7))) != 0;
+    }
+
+    /**
+     *
+     * @param input
+     * @return true if the table accepts the input, otherwise false
+     */
+    boolean accepts(CharSequence input) {
+        return isAccepting(run(initialState, input, 0, input.length()));
+    }
+}
@@ -0,0 +1,52 @@
+package casson.regexp;
+
+/**
+ * The location of a match in the input, as offsets rather than a copy of the matched characters.
+ *
+ * @author Chris Casson
+ */
+public final class Match {
+
+    private final int start;
+    private final int end;
+
+    Match(int start, int end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * 
+     * @return index of the first character of the match
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * 
+     * @return index after the last character of the match
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * start + end;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final Match other = (Match) obj;
+        return start == other.start && end == other.end;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + ", " + end + ")";
+    }
+}
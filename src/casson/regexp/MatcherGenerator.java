@@ -0,0 +1,228 @@
+package casson.regexp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import javax.tools.DiagnosticListener;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Generates a class specialized for a single DFATable.
+ * 
+ * Each state becomes a block of a switch statement with the transitions as case labels,
+ * so the JIT can compile the FSM into branches instead of table lookups.
+ * The source is compiled in memory with the system Java compiler and loaded as a hidden class when the JVM supports them.
+ * 
+ * Only tables small enough for the JIT to compile the generated method are supported.
+ *
+ * @author Chris Casson
+ */
+final class MatcherGenerator {
+
+    // the JIT doesn't compile huge methods, so stay well under its limit
+    static final int MAX_STATES = 64;
+    static final int MAX_BRANCHES = 512;
+
+    // ranges of characters at least this long are checked with comparisons instead of case labels
+    private static final int RANGE_LENGTH = 4;
+
+    private static final String PACKAGE = MatcherGenerator.class.getPackage().getName();
+    private static final AtomicInteger CLASS_COUNT = new AtomicInteger();
+
+    private MatcherGenerator() {
+    }
+
+    /**
+     * 
+     * @param table
+     * @return a predicate that accepts the same input as the table, or null if the table is too big
+     * or the class couldn't be generated (for example when there isn't a Java compiler available)
+     */
+    static Predicate<CharSequence> generate(DFATable table) {
+        String simpleName = "GeneratedMatcher" + CLASS_COUNT.incrementAndGet();
+        String source = generateSource(table, simpleName);
+        if (source == null) {
+            return null;
+        }
+        
+        try {
+            byte[] bytes = compile(PACKAGE + "." + simpleName, source);
+            if (bytes == null) {
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            Predicate<CharSequence> predicate = (Predicate<CharSequence>) defineClass(bytes).getDeclaredConstructor().newInstance();
+            return predicate;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            // fall back to the table
+            return null;
+        }
+    }
+
+    /**
+     * 
+     * @return the source of the generated class, or null if the table is too big
+     */
+    static String generateSource(DFATable table, String simpleName) {
+        if (table.stateCount > MAX_STATES) {
+            return null;
+        }
+        
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(PACKAGE).append(";\n\n");
+        source.append("public final class ").append(simpleName).append(" implements java.util.function.Predicate<CharSequence> {\n\n");
+        source.append("    public boolean test(CharSequence input) {\n");
+        source.append("        int state = ").append(table.initialState).append(";\n");
+        source.append("        for (int i = 0, length = input.length(); i < length; i++) {\n");
+        source.append("            char c = input.charAt(i);\n");
+        source.append("            switch (state) {\n");
+        
+        int branches = 0;
+        for (int state = 0; state < table.stateCount; state++) {
+            source.append("                case ").append(state).append(":\n");
+            StringBuilder labels = new StringBuilder();
+            StringBuilder ranges = new StringBuilder();
+            
+            // group the characters into runs that go to the same state
+            int character = 0;
+            while (character < table.classMap.length) {
+                int next = table.transitions[state * table.classCount + table.classMap[character]];
+                int end = character + 1;
+                while (end < table.classMap.length && table.transitions[state * table.classCount + table.classMap[end]] == next) {
+                    end++;
+                }
+                
+                if (next != DFATable.DEAD_STATE) {
+                    if (end - character >= RANGE_LENGTH) {
+                        ranges.append("                            if (c >= ").append(character).append(" && c <= ").append(end - 1)
+                                .append(") { state = ").append(next).append("; break; }\n");
+                        branches++;
+                    } else {
+                        for (int c = character; c < end; c++) {
+                            labels.append("                        case ").append(c).append(":\n");
+                            branches++;
+                        }
+                        labels.append("                            state = ").append(next).append(";\n");
+                        labels.append("                            break;\n");
+                    }
+                }
+                character = end;
+            }
+            if (branches > MAX_BRANCHES) {
+                return null;
+            }
+            
+            if (labels.length() == 0 && ranges.length() == 0) {
+                // every transition from the state is dead
+                source.append("                    return false;\n");
+            } else {
+                // anything not matched by a case label or a range is dead
+                source.append("                    switch (c) {\n");
+                source.append(labels);
+                source.append("                        default:\n");
+                source.append(ranges);
+                source.append("                            return false;\n");
+                source.append("                    }\n");
+                source.append("                    break;\n");
+            }
+        }
+        
+        source.append("                default:\n");
+        source.append("                    return false;\n");
+        source.append("            }\n");
+        source.append("        }\n");
+        
+        // accept if the last state is accepting
+        source.append("        switch (state) {\n");
+        for (int state = 0; state < table.stateCount; state++) {
+            if (table.accepting[state]) {
+                source.append("            case ").append(state).append(":\n");
+            }
+        }
+        source.append("                return true;\n");
+        source.append("            default:\n");
+        source.append("                return false;\n");
+        source.append("        }\n");
+        source.append("    }\n");
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * Compiles the source in memory.
+     * 
+     * @return the class file bytes, or null if there isn't a compiler or the source doesn't compile
+     */
+    private static byte[] compile(String className, String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            return null;
+        }
+        
+        JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        
+        // keep the class file in memory instead of writing it to disk
+        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + name.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return classFile;
+                    }
+                };
+            }
+        };
+        
+        // ignore the diagnostics, if it doesn't compile the table is used instead
+        DiagnosticListener<JavaFileObject> ignore = diagnostic -> { };
+        Boolean success = compiler.getTask(null, fileManager, ignore, Collections.singletonList("-g:none"), null, Collections.singletonList(sourceFile)).call();
+        return Boolean.TRUE.equals(success) ? classFile.toByteArray() : null;
+    }
+
+    /**
+     * Defines the class as a hidden class if the JVM supports them (Java 15 and later),
+     * otherwise in this class's package (Java 9 and later) or in its own class loader.
+     * The newer APIs are called reflectively so the project still runs on Java 8.
+     */
+    private static Class<?> defineClass(byte[] bytes) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            Method defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, Array.newInstance(optionClass, 0).getClass());
+            MethodHandles.Lookup hidden = (MethodHandles.Lookup) defineHiddenClass.invoke(lookup, bytes, true, Array.newInstance(optionClass, 0));
+            return hidden.lookupClass();
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            // hidden classes aren't supported
+        }
+        try {
+            Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+            return (Class<?>) defineClass.invoke(lookup, (Object) bytes);
+        } catch (NoSuchMethodException e) {
+            // Lookup.defineClass isn't supported
+        }
+        return new ClassLoader(MatcherGenerator.class.getClassLoader()) {
+            Class<?> define() {
+                return defineClass(null, bytes, 0, bytes.length);
+            }
+        }.define();
+    }
+}
@@ -0,0 +1,161 @@
+package casson.regexp;
+
+/**
+ * This class simulates an NFATable by advancing the set of active states one character at a time.
+ *
+ * Every state is visited at most once per character, so matching is O(n * m) for n characters and m states
+ * no matter how many paths there are through the FSM.
+ * The state sets are allocated once and reused for every character.
+ * A simulator isn't thread safe, each thread should create its own.
+ *
+ * @author Chris Casson
+ */
+final class NFASimulator {
+
+    /**
+     * A sparse set of state numbers that can be cleared in constant time.
+     */
+    static final class StateSet {
+
+        // dense holds the members in insertion order, sparse maps a member to its index in dense
+        final int[] dense;
+        final int[] sparse;
+        int size;
+
+        StateSet(int capacity) {
+            dense = new int[capacity];
+            sparse = new int[capacity];
+        }
+
+        boolean contains(int state) {
+            int index = sparse[state];
+            return index < size && dense[index] == state;
+        }
+
+        void add(int state) {
+            if (!contains(state)) {
+                sparse[state] = size;
+                dense[size++] = state;
+            }
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    private final NFATable table;
+    private StateSet current;
+    private StateSet next;
+
+    NFASimulator(NFATable table) {
+        this.table = table;
+        current = new StateSet(table.stateCount);
+        next = new StateSet(table.stateCount);
+    }
+
+    /**
+     *
+     * @param input
+     * @return true if the table accepts the input, otherwise false
+     */
+    boolean accepts(CharSequence input) {
+        reset();
+        run(input, 0, input.length());
+        return isAccepting();
+    }
+
+    /**
+     * Goes back to the initial states.
+     */
+    void reset() {
+        reset(table.initialStates);
+    }
+
+    /**
+     * Makes the given states the active states.
+     *
+     * @param states
+     */
+    void reset(int[] states) {
+        current.clear();
+        for (int state : states) {
+            current.add(state);
+        }
+    }
+
+    /**
+     * Advances the active states over input[from, to).
+     *
+     * @param input
+     * @param from index of the first character to read
+     * @param to index after the last character to read
+     */
+    void run(CharSequence input, int from, int to) {
+        for (int i = from; i < to && current.size > 0; i++) {
+            step(input.charAt(i));
+        }
+    }
+
+    /**
+     * Advances the active states over input[from, to).
+     *
+     * @param input
+     * @param from index of the first character to read
+     * @param to index after the last character to read
+     */
+    void run(char[] input, int from, int to) {
+        for (int i = from; i < to && current.size > 0; i++) {
+            step(input[i]);
+        }
+    }
+
+    /**
+     *
+     * @return true if any of the active states are accepting, otherwise false
+     */
+    boolean isAccepting() {
+        for (int i = 0; i < current.size; i++) {
+            if (table.accepting[current.dense[i]]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @return true if there are no active states left, otherwise false
+     */
+    boolean isDead() {
+        return current.size == 0;
+    }
+
+    /**
+     * Replaces the current states with the states reached from them by the given character.
+     *
+     * @param character
+     */
+    private void step(char character) {
+        // the edges are for the representatives of the alphabet's ranges
+        if (table.alphabet != null) {
+            character = table.alphabet.representative(character);
+        }
+        
+        next.clear();
+        for (int i = 0; i < current.size; i++) {
+            int state = current.dense[i];
+
+            // follow every edge of the state for the character
+            int end = table.edgeOffsets[state + 1];
+            for (int edge = table.firstEdge(state, character); edge < end && table.edgeCharacters[edge] == character; edge++) {
+                next.add(table.edgeTargets[edge]);
+            }
+        }
+
+        // swap the sets so the next states become the current states
+        StateSet swap = current;
+        current = next;
+        next = swap;
+    }
+}
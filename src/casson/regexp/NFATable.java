@@ -0,0 +1,552 @@
+package casson.regexp;
+
+import casson.regexp.FiniteStateMachine.State;
+import casson.regexp.NonDeterministicFSM.NonDeterministicState;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class represents a compiled NonDeterministicFSM.
+ * The states are numbered and each state's transitions are stored as a run of (character, next state) edges
+ * sorted by character, so the edges for a character can be found with a binary search.
+ *
+ * @author Chris Casson
+ */
+final class NFATable {
+
+    final int stateCount;
+    final int[] initialStates;
+    final boolean[] accepting;
+
+    // the edges of state s are at indexes [edgeOffsets[s], edgeOffsets[s + 1])
+    final int[] edgeOffsets;
+    final char[] edgeCharacters;
+    final int[] edgeTargets;
+
+    // the pattern each state belongs to, only set when the table is the union of a RegularExpressionSet's patterns
+    final int[] statePatterns;
+    
+    // the edges are for the alphabet's representatives when the expression has classes, otherwise null
+    final Alphabet alphabet;
+
+    /**
+     * Compiles the given NonDeterministicFSM into a table.
+     *
+     * @param fsm
+     */
+    NFATable(NonDeterministicFSM fsm) {
+        this(fsm, null);
+    }
+
+    /**
+     * Compiles the given NonDeterministicFSM into a table.
+     *
+     * @param fsm
+     * @param alphabet the alphabet the fsm's edges are for, null if the expression doesn't have classes
+     */
+    NFATable(NonDeterministicFSM fsm, Alphabet alphabet) {
+        this.alphabet = alphabet;
+        // number the states in the order they're reachable from the initial states
+        Map<State, Integer> stateNumbers = new IdentityHashMap<>();
+        List<NonDeterministicState> numberedStates = new ArrayList<>();
+        Deque<NonDeterministicState> worklist = new ArrayDeque<>();
+        for (State initialState : fsm.getInitialStates()) {
+            stateNumbers.put(initialState, numberedStates.size());
+            numberedStates.add((NonDeterministicState) initialState);
+            worklist.add((NonDeterministicState) initialState);
+        }
+        
+        int edgeCount = 0;
+        while (!worklist.isEmpty()) {
+            NonDeterministicState state = worklist.poll();
+            for (Collection<State> nextStates : state.transitions.values()) {
+                edgeCount += nextStates.size();
+                for (State nextState : nextStates) {
+                    if (!stateNumbers.containsKey(nextState)) {
+                        stateNumbers.put(nextState, numberedStates.size());
+                        numberedStates.add((NonDeterministicState) nextState);
+                        worklist.add((NonDeterministicState) nextState);
+                    }
+                }
+            }
+        }
+
+        stateCount = numberedStates.size();
+        statePatterns = null;
+        initialStates = new int[fsm.getInitialStates().size()];
+        for (int i = 0; i < initialStates.length; i++) {
+            initialStates[i] = i;
+        }
+        accepting = new boolean[stateCount];
+        edgeOffsets = new int[stateCount + 1];
+        edgeCharacters = new char[edgeCount];
+        edgeTargets = new int[edgeCount];
+
+        // lay out each state's edges sorted by character then target, skipping duplicates
+        // the edge keys (character << 32 | target) are sorted so duplicates end up next to each other
+        long[] keys = new long[edgeCount];
+        int edge = 0;
+        for (int s = 0; s < stateCount; s++) {
+            NonDeterministicState state = numberedStates.get(s);
+            accepting[s] = state.acceptingState;
+            edgeOffsets[s] = edge;
+
+            int keyCount = 0;
+            for (Map.Entry<Character, Collection<State>> transition : state.transitions.entrySet()) {
+                for (State nextState : transition.getValue()) {
+                    keys[keyCount++] = ((long) transition.getKey() << 32) | stateNumbers.get(nextState);
+                }
+            }
+            Arrays.sort(keys, 0, keyCount);
+
+            for (int k = 0; k < keyCount; k++) {
+                if (k > 0 && keys[k] == keys[k - 1]) {
+                    continue;
+                }
+                edgeCharacters[edge] = (char) (keys[k] >>> 32);
+                edgeTargets[edge] = (int) keys[k];
+                edge++;
+            }
+        }
+        edgeOffsets[stateCount] = edge;
+    }
+
+    /**
+     * Creates a table from arrays that are already laid out.
+     */
+    private NFATable(int[] initialStates, boolean[] accepting, int[] edgeOffsets, char[] edgeCharacters, int[] edgeTargets, int[] statePatterns,
+            Alphabet alphabet) {
+        this.stateCount = accepting.length;
+        this.alphabet = alphabet;
+        this.initialStates = initialStates;
+        this.accepting = accepting;
+        this.edgeOffsets = edgeOffsets;
+        this.edgeCharacters = edgeCharacters;
+        this.edgeTargets = edgeTargets;
+        this.statePatterns = statePatterns;
+    }
+
+    /**
+     * Creates a table that accepts anything any of the given tables accept.
+     * The states of each table are renumbered after the states of the tables before it,
+     * and every state is tagged with the index of the table it came from.
+     *
+     * @param tables
+     * @return the union of the tables
+     */
+    static NFATable union(List<NFATable> tables) {
+        int stateCount = 0;
+        int edgeCount = 0;
+        int initialCount = 0;
+        for (NFATable table : tables) {
+            stateCount += table.stateCount;
+            edgeCount += table.edgeOffsets[table.stateCount];
+            initialCount += table.initialStates.length;
+        }
+        
+        int[] initialStates = new int[initialCount];
+        boolean[] accepting = new boolean[stateCount];
+        int[] edgeOffsets = new int[stateCount + 1];
+        char[] edgeCharacters = new char[edgeCount];
+        int[] edgeTargets = new int[edgeCount];
+        int[] statePatterns = new int[stateCount];
+        
+        // copy each table, shifting its state numbers by the number of states before it
+        int stateBase = 0;
+        int edgeBase = 0;
+        int initialBase = 0;
+        for (int pattern = 0; pattern < tables.size(); pattern++) {
+            NFATable table = tables.get(pattern);
+            int tableEdges = table.edgeOffsets[table.stateCount];
+            for (int i = 0; i < table.initialStates.length; i++) {
+                initialStates[initialBase + i] = stateBase + table.initialStates[i];
+            }
+            for (int s = 0; s < table.stateCount; s++) {
+                accepting[stateBase + s] = table.accepting[s];
+                edgeOffsets[stateBase + s] = edgeBase + table.edgeOffsets[s];
+                statePatterns[stateBase + s] = pattern;
+            }
+            System.arraycopy(table.edgeCharacters, 0, edgeCharacters, edgeBase, tableEdges);
+            for (int edge = 0; edge < tableEdges; edge++) {
+                edgeTargets[edgeBase + edge] = stateBase + table.edgeTargets[edge];
+            }
+            stateBase += table.stateCount;
+            edgeBase += tableEdges;
+            initialBase += table.initialStates.length;
+        }
+        edgeOffsets[stateCount] = edgeBase;
+        
+        // the tables of a set all use the alphabet of the whole set
+        return new NFATable(initialStates, accepting, edgeOffsets, edgeCharacters, edgeTargets, statePatterns, tables.get(0).alphabet);
+    }
+
+    /**
+     * Creates a table that accepts the reverse of everything this table accepts.
+     * Every edge is turned around, the accepting states become the initial states and the initial states become accepting.
+     *
+     * @return the reversed table
+     */
+    NFATable reverse() {
+        int edgeCount = edgeOffsets[stateCount];
+        
+        // count the edges going into each state, they become the state's outgoing edges
+        int[] reversedOffsets = new int[stateCount + 1];
+        for (int edge = 0; edge < edgeCount; edge++) {
+            reversedOffsets[edgeTargets[edge] + 1]++;
+        }
+        for (int s = 0; s < stateCount; s++) {
+            reversedOffsets[s + 1] += reversedOffsets[s];
+        }
+        
+        // place the edge keys (character << 32 | target) for each state, then sort each state's run
+        long[] keys = new long[edgeCount];
+        int[] fill = Arrays.copyOf(reversedOffsets, stateCount);
+        for (int s = 0; s < stateCount; s++) {
+            for (int edge = edgeOffsets[s]; edge < edgeOffsets[s + 1]; edge++) {
+                keys[fill[edgeTargets[edge]]++] = ((long) edgeCharacters[edge] << 32) | s;
+            }
+        }
+        char[] reversedCharacters = new char[edgeCount];
+        int[] reversedTargets = new int[edgeCount];
+        for (int s = 0; s < stateCount; s++) {
+            Arrays.sort(keys, reversedOffsets[s], reversedOffsets[s + 1]);
+        }
+        for (int edge = 0; edge < edgeCount; edge++) {
+            reversedCharacters[edge] = (char) (keys[edge] >>> 32);
+            reversedTargets[edge] = (int) keys[edge];
+        }
+        
+        // swap the initial and accepting states
+        int acceptingCount = 0;
+        for (boolean a : accepting) {
+            if (a) {
+                acceptingCount++;
+            }
+        }
+        int[] reversedInitialStates = new int[acceptingCount];
+        for (int s = 0, i = 0; s < stateCount; s++) {
+            if (accepting[s]) {
+                reversedInitialStates[i++] = s;
+            }
+        }
+        boolean[] reversedAccepting = new boolean[stateCount];
+        for (int initialState : initialStates) {
+            reversedAccepting[initialState] = true;
+        }
+        
+        return new NFATable(reversedInitialStates, reversedAccepting, reversedOffsets, reversedCharacters, reversedTargets, statePatterns, alphabet);
+    }
+
+    /**
+     * The byte edges of a table being converted to UTF-8.
+     */
+    private static final class Utf8Edges {
+
+        // the byte edges as (from state, byte << 32 | target), intermediate states are numbered after the existing states
+        private int[] froms;
+        private long[] keys;
+        private int edgeCount;
+        private int stateCount;
+        
+        // the intermediate state for (from state << 16 | lowest byte << 8 | highest byte)
+        private final Map<Long, Integer> intermediateStates = new HashMap<>();
+        
+        private final byte[] lowBytes = new byte[4];
+        private final byte[] highBytes = new byte[4];
+        private int[] pending = new int[16];
+
+        private Utf8Edges(int stateCount, int edgeCapacity) {
+            this.stateCount = stateCount;
+            froms = new int[edgeCapacity];
+            keys = new long[edgeCapacity];
+        }
+
+        /**
+         * Adds the paths for every code point in [low, high], none of which are surrogates.
+         * 
+         * The range is split until the bytes at each position of the encoding form a range of their own,
+         * so each piece is one path with a range of bytes on each edge.
+         */
+        private void addRange(int from, int low, int high, int target) {
+            if (low > high) {
+                return;
+            }
+            int pendingCount = 0;
+            pending[pendingCount++] = low;
+            pending[pendingCount++] = high;
+            while (pendingCount > 0) {
+                high = pending[--pendingCount];
+                low = pending[--pendingCount];
+                if (pendingCount + 4 > pending.length) {
+                    pending = Arrays.copyOf(pending, pending.length * 2);
+                }
+                
+                // split where the encoding gets longer
+                int split = -1;
+                for (int max : new int[] {0x7F, 0x7FF, 0xFFFF}) {
+                    if (low <= max && high > max) {
+                        split = max;
+                        break;
+                    }
+                }
+                
+                // split where a continuation byte doesn't cover its whole range
+                for (int i = 1; i < 4 && split == -1; i++) {
+                    int mask = (1 << (6 * i)) - 1;
+                    if ((low & ~mask) != (high & ~mask)) {
+                        if ((low & mask) != 0) {
+                            split = low | mask;
+                        } else if ((high & mask) != mask) {
+                            split = (high & ~mask) - 1;
+                        }
+                    }
+                }
+                
+                if (split != -1) {
+                    pending[pendingCount++] = split + 1;
+                    pending[pendingCount++] = high;
+                    pending[pendingCount++] = low;
+                    pending[pendingCount++] = split;
+                } else {
+                    int length = encodeUtf8(low, lowBytes);
+                    encodeUtf8(high, highBytes);
+                    addPath(from, length, target);
+                }
+            }
+        }
+
+        /**
+         * Adds the path for the byte ranges in lowBytes and highBytes.
+         * The paths from a state share their intermediate states while their byte ranges are the same, like a trie.
+         */
+        private void addPath(int from, int length, int target) {
+            for (int b = 0; b < length; b++) {
+                int lowByte = lowBytes[b] & 0xFF;
+                int highByte = highBytes[b] & 0xFF;
+                int to;
+                if (b == length - 1) {
+                    to = target;
+                } else {
+                    Long key = ((long) from << 16) | (lowByte << 8) | highByte;
+                    Integer intermediate = intermediateStates.get(key);
+                    if (intermediate != null) {
+                        from = intermediate;
+                        continue;
+                    }
+                    to = stateCount++;
+                    intermediateStates.put(key, to);
+                }
+                
+                for (int value = lowByte; value <= highByte; value++) {
+                    if (edgeCount == froms.length) {
+                        froms = Arrays.copyOf(froms, edgeCount * 2);
+                        keys = Arrays.copyOf(keys, edgeCount * 2);
+                    }
+                    froms[edgeCount] = from;
+                    keys[edgeCount] = ((long) value << 32) | to;
+                    edgeCount++;
+                }
+                from = to;
+            }
+        }
+    }
+
+    /**
+     * Creates a table that reads UTF-8 bytes instead of characters, each byte is an edge character from 0 to 255.
+     * 
+     * Every edge is replaced by paths through the bytes of the UTF-8 encodings of its characters,
+     * which is every character in the range an edge for an alphabet's representative stands for.
+     * A high surrogate edge followed by a low surrogate edge becomes paths for the four bytes of the code points,
+     * surrogates that aren't part of a pair can't appear in UTF-8 so their edges are dropped.
+     *
+     * @return the table over UTF-8 bytes
+     */
+    NFATable toUtf8() {
+        Utf8Edges utf8 = new Utf8Edges(stateCount, edgeOffsets[stateCount] * 2 + 16);
+        
+        // the low surrogate edges start with the representative of the range holding the first low surrogate
+        char lowSurrogateStart = alphabet == null ? Character.MIN_LOW_SURROGATE : alphabet.representative(Character.MIN_LOW_SURROGATE);
+        
+        for (int s = 0; s < stateCount; s++) {
+            for (int edge = edgeOffsets[s]; edge < edgeOffsets[s + 1]; edge++) {
+                int low = edgeCharacters[edge];
+                int high = getRangeEnd(edgeCharacters[edge]);
+                int target = edgeTargets[edge];
+                
+                // the characters below and above the surrogates are code points of their own
+                utf8.addRange(s, low, Math.min(high, Character.MIN_SURROGATE - 1), target);
+                utf8.addRange(s, Math.max(low, Character.MAX_SURROGATE + 1), high, target);
+                
+                // the high surrogates pair up with the low surrogates on the edges of the target
+                int highSurrogateStart = Math.max(low, Character.MIN_HIGH_SURROGATE);
+                int highSurrogateEnd = Math.min(high, Character.MAX_HIGH_SURROGATE);
+                if (highSurrogateStart > highSurrogateEnd) {
+                    continue;
+                }
+                int lowEnd = firstEdge(target, (char) (Character.MAX_LOW_SURROGATE + 1));
+                for (int lowEdge = firstEdge(target, lowSurrogateStart); lowEdge < lowEnd; lowEdge++) {
+                    int pairLow = Math.max(edgeCharacters[lowEdge], Character.MIN_LOW_SURROGATE);
+                    int pairHigh = Math.min(getRangeEnd(edgeCharacters[lowEdge]), Character.MAX_LOW_SURROGATE);
+                    if (pairLow > pairHigh) {
+                        continue;
+                    }
+                    if (pairLow == Character.MIN_LOW_SURROGATE && pairHigh == Character.MAX_LOW_SURROGATE) {
+                        // every low surrogate, so the code points are one range
+                        utf8.addRange(s, Character.toCodePoint((char) highSurrogateStart, Character.MIN_LOW_SURROGATE),
+                                Character.toCodePoint((char) highSurrogateEnd, Character.MAX_LOW_SURROGATE), edgeTargets[lowEdge]);
+                    } else {
+                        for (int highSurrogate = highSurrogateStart; highSurrogate <= highSurrogateEnd; highSurrogate++) {
+                            utf8.addRange(s, Character.toCodePoint((char) highSurrogate, (char) pairLow),
+                                    Character.toCodePoint((char) highSurrogate, (char) pairHigh), edgeTargets[lowEdge]);
+                        }
+                    }
+                }
+            }
+        }
+        
+        int[] froms = utf8.froms;
+        long[] keys = utf8.keys;
+        int edgeCount = utf8.edgeCount;
+        int byteStateCount = utf8.stateCount;
+        
+        // lay the edges out by state, sorted by byte then target without duplicates
+        int[] byteOffsets = new int[byteStateCount + 1];
+        for (int edge = 0; edge < edgeCount; edge++) {
+            byteOffsets[froms[edge] + 1]++;
+        }
+        for (int s = 0; s < byteStateCount; s++) {
+            byteOffsets[s + 1] += byteOffsets[s];
+        }
+        long[] placed = new long[edgeCount];
+        int[] fill = Arrays.copyOf(byteOffsets, byteStateCount);
+        for (int edge = 0; edge < edgeCount; edge++) {
+            placed[fill[froms[edge]]++] = keys[edge];
+        }
+        char[] byteCharacters = new char[edgeCount];
+        int[] byteTargets = new int[edgeCount];
+        int[] compactOffsets = new int[byteStateCount + 1];
+        int byteEdge = 0;
+        for (int s = 0; s < byteStateCount; s++) {
+            compactOffsets[s] = byteEdge;
+            Arrays.sort(placed, byteOffsets[s], byteOffsets[s + 1]);
+            for (int k = byteOffsets[s]; k < byteOffsets[s + 1]; k++) {
+                if (k > byteOffsets[s] && placed[k] == placed[k - 1]) {
+                    continue;
+                }
+                byteCharacters[byteEdge] = (char) (placed[k] >>> 32);
+                byteTargets[byteEdge] = (int) placed[k];
+                byteEdge++;
+            }
+        }
+        compactOffsets[byteStateCount] = byteEdge;
+        
+        // the intermediate states are never accepting
+        boolean[] byteAccepting = Arrays.copyOf(accepting, byteStateCount);
+        return new NFATable(initialStates, byteAccepting, compactOffsets, byteCharacters, byteTargets, null, null);
+    }
+
+    /**
+     * 
+     * @param codePoint
+     * @param bytes receives the encoding, it must have room for 4 bytes
+     * @return the number of bytes in the UTF-8 encoding of the code point
+     */
+    static int encodeUtf8(int codePoint, byte[] bytes) {
+        if (codePoint < 0x80) {
+            bytes[0] = (byte) codePoint;
+            return 1;
+        } else if (codePoint < 0x800) {
+            bytes[0] = (byte) (0xC0 | (codePoint >>> 6));
+            bytes[1] = (byte) (0x80 | (codePoint & 0x3F));
+            return 2;
+        } else if (codePoint < 0x10000) {
+            bytes[0] = (byte) (0xE0 | (codePoint >>> 12));
+            bytes[1] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+            bytes[2] = (byte) (0x80 | (codePoint & 0x3F));
+            return 3;
+        }
+        bytes[0] = (byte) (0xF0 | (codePoint >>> 18));
+        bytes[1] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+        bytes[2] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+        bytes[3] = (byte) (0x80 | (codePoint & 0x3F));
+        return 4;
+    }
+
+    /**
+     * 
+     * @param character an edge character
+     * @return the last character the edge stands for, which is the character itself unless the table has an alphabet
+     */
+    private int getRangeEnd(char character) {
+        return alphabet == null ? character : alphabet.highs[alphabet.rangeOf(character)];
+    }
+
+    /**
+     *
+     * @return the characters that have at least one edge, sorted
+     */
+    char[] getAlphabet() {
+        int edgeCount = edgeOffsets[stateCount];
+        char[] characters = Arrays.copyOf(edgeCharacters, edgeCount);
+        Arrays.sort(characters);
+        
+        // remove the duplicates
+        int count = 0;
+        for (int i = 0; i < edgeCount; i++) {
+            if (count == 0 || characters[count - 1] != characters[i]) {
+                characters[count++] = characters[i];
+            }
+        }
+        return Arrays.copyOf(characters, count);
+    }
+
+    /**
+     *
+     * @param state
+     * @param character
+     * @return index of the first edge of state for character, or the end of the state's edges if there isn't one
+     */
+    int firstEdge(int state, char character) {
+        // binary search for the lowest edge with edgeCharacters[edge] >= character
+        int low = edgeOffsets[state];
+        int high = edgeOffsets[state + 1];
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (edgeCharacters[middle] < character) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 
+     * @return the number of transitions, not counting duplicates
+     */
+    int getTransitionCount() {
+        return edgeOffsets[stateCount];
+    }
+
+    /**
+     * 
+     * @return the number of bytes in the table's arrays
+     */
+    long getByteCount() {
+        long bytes = (long) Integer.BYTES * (initialStates.length + edgeOffsets.length + edgeTargets.length)
+                + (long) Character.BYTES * edgeCharacters.length
+                + accepting.length;
+        if (statePatterns != null) {
+            bytes += (long) Integer.BYTES * statePatterns.length;
+        }
+        return bytes;
+    }
+}
@@ -1,11 +1,12 @@
 package casson.regexp;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 /**
  * This class represents a non-deterministic FSM.
@@ -30,7 +31,8 @@ class NonDeterministicFSM extends FiniteStateMachine {
         @Override
         void addTransition(Character input, State nextState) {
             if (!transitions.containsKey(input)) {
-                transitions.put(input, new ArrayList<>());
+                // a set so merging the same transitions again doesn't add duplicates
+                transitions.put(input, new LinkedHashSet<>());
             }
             transitions.get(input).add(nextState);
         }
@@ -62,7 +64,11 @@ class NonDeterministicFSM extends FiniteStateMachine {
         }
     }
     
-    Collection<NonDeterministicState> states;
+    // the fragment's only initial state, nothing transitions into it
+    NonDeterministicState initialState;
+    
+    // the accepting states other than the initial state, whether the initial state accepts is kept on the state
+    List<NonDeterministicState> acceptingStates;
 
     /**
      * Creates a non-deterministic FSM that accepts the given character as input.
@@ -73,7 +79,7 @@ class NonDeterministicFSM extends FiniteStateMachine {
         super();
         
         // create an initial state
-        NonDeterministicState initialState = new NonDeterministicState();
+        initialState = new NonDeterministicState();
         initialState.initialState = true;
         
         // create an accepting state
@@ -83,17 +89,50 @@ class NonDeterministicFSM extends FiniteStateMachine {
         // add a transition from initial to accepting for input character
         initialState.addTransition(character, acceptingState);
         
-        // assign initial and accepting to states
-        states = new ArrayList<>(Arrays.asList(initialState, acceptingState));
+        acceptingStates = new ArrayList<>();
+        acceptingStates.add(acceptingState);
     }
 
     /**
+     * Creates a non-deterministic FSM that accepts any one of the given characters as input.
      * 
-     * @return states with initialState set to true
+     * @param characters 
+     */
+    NonDeterministicFSM(char[] characters) {
+        super();
+        
+        initialState = new NonDeterministicState();
+        initialState.initialState = true;
+        NonDeterministicState acceptingState = new NonDeterministicState();
+        acceptingState.acceptingState = true;
+        
+        // every character goes to the same accepting state
+        for (char character : characters) {
+            initialState.addTransition(character, acceptingState);
+        }
+        
+        acceptingStates = new ArrayList<>();
+        acceptingStates.add(acceptingState);
+    }
+
+    /**
+     * 
+     * @return the initial state
      */
     @Override
     Collection<State> getInitialStates() {
-        return states.stream().filter(s -> s.initialState).collect(Collectors.toList());
+        return Collections.singletonList(initialState);
+    }
+
+    /**
+     * Simulates the FSM with the set of active states instead of trying every path through it.
+     * 
+     * @param input
+     * @return true if this FSM accepts the input string, otherwise false
+     */
+    @Override
+    boolean accepts(CharSequence input) {
+        return new NFASimulator(new NFATable(this)).accepts(input);
     }
 
     /**
@@ -102,31 +141,43 @@ class NonDeterministicFSM extends FiniteStateMachine {
      * @return the NonDeterministicFSM on which closure() was called
      */
     NonDeterministicFSM closure() {
-        // create a state to hold all the transitions from the initial states
-        // these transitions get added to all the accepting states
-        NonDeterministicState mergedInitialState = new NonDeterministicState();
-        
-        // get the initial states and accepting states
-        Collection<NonDeterministicState> initialStates = states.stream().filter(s -> s.initialState).collect(Collectors.toList());
-        Collection<NonDeterministicState> acceptingStates = states.stream().filter(s -> s.acceptingState).collect(Collectors.toList());
-        
-        // for each initial state
-        for (NonDeterministicState initialState : initialStates) {
-            // add the transitions to the merged initial state
-            mergedInitialState.mergeTransitions(initialState.transitions);
-            // make the initial state an accepting state
-            initialState.acceptingState = true;
+        // add the transitions from the initial state to all the accepting states
+        for (NonDeterministicState acceptingState : acceptingStates) {
+            acceptingState.mergeTransitions(initialState.transitions);
         }
         
-        // for each accepting state
+        // make the initial state an accepting state
+        initialState.acceptingState = true;
+        
+        return this;
+    }
+
+    /**
+     * Repeats the FSM one or more times.
+     * 
+     * @return the NonDeterministicFSM on which oneOrMore() was called
+     */
+    NonDeterministicFSM oneOrMore() {
+        // the accepting states can start over, but unlike closure the empty string isn't accepted
         for (NonDeterministicState acceptingState : acceptingStates) {
-            // add all the transitions from the initial states
-            acceptingState.mergeTransitions(mergedInitialState.transitions);
+            acceptingState.mergeTransitions(initialState.transitions);
         }
         
         return this;
     }
 
+    /**
+     * Makes the FSM optional.
+     * 
+     * @return the NonDeterministicFSM on which optional() was called
+     */
+    NonDeterministicFSM optional() {
+        // nothing transitions into the initial state, so making it accepting only adds the empty string
+        initialState.acceptingState = true;
+        
+        return this;
+    }
+
     /**
      * Concats the given FSM to this FSM.
      * 
@@ -134,24 +185,26 @@ class NonDeterministicFSM extends FiniteStateMachine {
      * @return the NonDeterministicFSM on which concat() was called
      */
     NonDeterministicFSM concat(NonDeterministicFSM fsmRight) {
-        // get the accepting states from the left
-        Collection<NonDeterministicState> leftAcceptingStates = this.states.stream().filter(s -> s.acceptingState).collect(Collectors.toList());
-        
-        // get the first initial state on the right
-        // there should only be one
-        NonDeterministicState rightInitialState = fsmRight.states.stream().filter(s -> s.initialState).findFirst().get();
+        NonDeterministicState rightInitialState = fsmRight.initialState;
         
-        // for each left accepting state
-        for (NonDeterministicState leftAcceptingState : leftAcceptingStates) {
+        // for each left accepting state, including the initial state if it accepts
+        if (initialState.acceptingState) {
+            initialState.mergeTransitions(rightInitialState.transitions);
+            initialState.acceptingState = rightInitialState.acceptingState;
+        }
+        for (NonDeterministicState leftAcceptingState : acceptingStates) {
             // add the transitions from the right initial state
             leftAcceptingState.mergeTransitions(rightInitialState.transitions);
             // update accepting to right initial accepting
             leftAcceptingState.acceptingState = rightInitialState.acceptingState;
         }
         
-        // get the non-initial states from the right and add them to the left
-        Collection<NonDeterministicState> newStates = fsmRight.states.stream().filter(s -> !s.initialState).collect(Collectors.toList());
-        this.states.addAll(newStates);
+        // the left accepting states only stay accepting if the right initial state was accepting
+        if (rightInitialState.acceptingState) {
+            acceptingStates = addSmallerToLarger(acceptingStates, fsmRight.acceptingStates);
+        } else {
+            acceptingStates = fsmRight.acceptingStates;
+        }
         
         return this;
     }
@@ -163,20 +216,44 @@ class NonDeterministicFSM extends FiniteStateMachine {
      * @return the NonDeterministicFSM on which union() was called
      */
     NonDeterministicFSM union(NonDeterministicFSM fsmRight) {
-        // get the initial states from the left and the right
-        NonDeterministicState leftInitialState = this.states.stream().filter(s -> s.initialState).findFirst().get();
-        NonDeterministicState rightInitialState = fsmRight.states.stream().filter(s -> s.initialState).findFirst().get();
-        
-        // add the transitions from the right initial state to the left initial state
-        leftInitialState.mergeTransitions(rightInitialState.transitions);
+        // keep the initial state with more transitions and add the other one's transitions to it,
+        // neither initial state has transitions into it so either one can be dropped
+        NonDeterministicState keptInitialState = initialState;
+        NonDeterministicState droppedInitialState = fsmRight.initialState;
+        if (transitionCount(droppedInitialState) > transitionCount(keptInitialState)) {
+            keptInitialState = fsmRight.initialState;
+            droppedInitialState = initialState;
+        }
+        keptInitialState.mergeTransitions(droppedInitialState.transitions);
         
-        // if either of the initial states are accepting states then the left initial state is accepting
-        leftInitialState.acceptingState = leftInitialState.acceptingState || rightInitialState.acceptingState;
+        // if either of the initial states are accepting states then the initial state is accepting
+        keptInitialState.acceptingState = keptInitialState.acceptingState || droppedInitialState.acceptingState;
+        initialState = keptInitialState;
         
-        // add states (other than initial) from the right to the left
-        Collection<NonDeterministicState> rightStates = fsmRight.states.stream().filter(s -> !s.initialState).collect(Collectors.toList());
-        this.states.addAll(rightStates);
+        acceptingStates = addSmallerToLarger(acceptingStates, fsmRight.acceptingStates);
         
         return this;
     }
+
+    private static int transitionCount(NonDeterministicState state) {
+        int count = 0;
+        for (Collection<State> nextStates : state.transitions.values()) {
+            count += nextStates.size();
+        }
+        return count;
+    }
+
+    /**
+     * Adding the smaller list to the larger one means each state is only copied a logarithmic number of times.
+     * 
+     * @return the larger list with the smaller list's states added
+     */
+    private static List<NonDeterministicState> addSmallerToLarger(List<NonDeterministicState> a, List<NonDeterministicState> b) {
+        if (a.size() < b.size()) {
+            b.addAll(a);
+            return b;
+        }
+        a.addAll(b);
+        return a;
+    }
 }
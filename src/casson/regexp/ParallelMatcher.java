@@ -0,0 +1,159 @@
+package casson.regexp;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Matches a single large input against a DFATable on several threads.
+ * 
+ * The input is split into chunks. Since the state a chunk starts in isn't known until the chunks before it are done,
+ * each chunk is run from every state at once, giving a mapping from start state to end state.
+ * Runs from different start states usually end up in the same state after a few characters,
+ * after which they're only followed once.
+ * The mappings of the chunks are composed in order to get the state after the whole input.
+ *
+ * @author Chris Casson
+ */
+final class ParallelMatcher {
+
+    // inputs shorter than this aren't worth splitting
+    static final int MIN_CHUNK_LENGTH = 1 << 16;
+    
+    // how often the runs are checked for ones that ended up in the same state
+    private static final int MERGE_INTERVAL = 64;
+
+    /**
+     * Computes the mapping for a range of the input, splitting it in half until it's small enough.
+     */
+    private static final class MappingTask extends RecursiveTask<int[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DFATable table;
+        private final CharSequence input;
+        private final int from;
+        private final int to;
+        private final int chunkLength;
+
+        MappingTask(DFATable table, CharSequence input, int from, int to, int chunkLength) {
+            this.table = table;
+            this.input = input;
+            this.from = from;
+            this.to = to;
+            this.chunkLength = chunkLength;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= chunkLength) {
+                return mapping(table, input, from, to);
+            }
+            
+            int middle = (from + to) >>> 1;
+            MappingTask left = new MappingTask(table, input, from, middle, chunkLength);
+            MappingTask right = new MappingTask(table, input, middle, to, chunkLength);
+            left.fork();
+            int[] rightMapping = right.compute();
+            int[] leftMapping = left.join();
+            return compose(leftMapping, rightMapping);
+        }
+    }
+
+    private ParallelMatcher() {
+    }
+
+    /**
+     * 
+     * @param table
+     * @param input
+     * @param pool the pool to run the chunks on
+     * @return true if the table accepts the input, otherwise false
+     */
+    static boolean accepts(DFATable table, CharSequence input, ForkJoinPool pool) {
+        int length = input.length();
+        int chunkLength = Math.max(MIN_CHUNK_LENGTH, length / (pool.getParallelism() * 4) + 1);
+        if (length <= chunkLength) {
+            return table.accepts(input);
+        }
+        
+        int[] mapping = pool.invoke(new MappingTask(table, input, 0, length, chunkLength));
+        return table.isAccepting(mapping[table.initialState]);
+    }
+
+    /**
+     * Runs input[from, to) from every state of the table.
+     * 
+     * @return mapping[state] is the state after reading the input starting in state, or DEAD_STATE
+     */
+    static int[] mapping(DFATable table, CharSequence input, int from, int to) {
+        int stateCount = table.stateCount;
+        
+        // the distinct states the runs are in, and which of them each start state's run is in
+        int[] runs = new int[stateCount];
+        int[] runOf = new int[stateCount];
+        for (int s = 0; s < stateCount; s++) {
+            runs[s] = s;
+            runOf[s] = s;
+        }
+        int runCount = stateCount;
+        
+        // scratch space for merging runs, indexed by state + 1 so DEAD_STATE fits
+        int[] mergedRun = new int[stateCount + 1];
+        int[] remap = new int[stateCount];
+        
+        int i = from;
+        while (i < to) {
+            if (runCount == 1) {
+                // every start state ended up in the same state, the rest is a normal run
+                runs[0] = table.run(runs[0], input, i, to);
+                break;
+            }
+            
+            // advance every run over the next few characters
+            int end = Math.min(to, i + MERGE_INTERVAL);
+            for (int r = 0; r < runCount; r++) {
+                runs[r] = table.run(runs[r], input, i, end);
+            }
+            i = end;
+            
+            // merge the runs that are in the same state
+            Arrays.fill(mergedRun, -1);
+            int mergedCount = 0;
+            for (int r = 0; r < runCount; r++) {
+                int slot = runs[r] + 1;
+                if (mergedRun[slot] == -1) {
+                    mergedRun[slot] = mergedCount;
+                    runs[mergedCount++] = runs[r];
+                }
+                remap[r] = mergedRun[slot];
+            }
+            if (mergedCount < runCount) {
+                for (int s = 0; s < stateCount; s++) {
+                    runOf[s] = remap[runOf[s]];
+                }
+                runCount = mergedCount;
+            }
+        }
+        
+        int[] mapping = new int[stateCount];
+        for (int s = 0; s < stateCount; s++) {
+            mapping[s] = runs[runOf[s]];
+        }
+        return mapping;
+    }
+
+    /**
+     * 
+     * @param first the mapping for the earlier part of the input
+     * @param second the mapping for the part right after it
+     * @return the mapping for both parts
+     */
+    static int[] compose(int[] first, int[] second) {
+        int[] mapping = new int[first.length];
+        for (int s = 0; s < first.length; s++) {
+            mapping[s] = first[s] == DFATable.DEAD_STATE ? DFATable.DEAD_STATE : second[first[s]];
+        }
+        return mapping;
+    }
+}
@@ -1,38 +1,85 @@
 package casson.regexp;
 
-import casson.regexp.DeterministicFSM.DeterministicState;
-import casson.regexp.FiniteStateMachine.State;
-import casson.regexp.NonDeterministicFSM.NonDeterministicState;
-import java.util.Collection;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Represents a regular expression that supports the following special characters:
  * 
  * () - parenthesis - used for grouping and explicit order of operations.
  * * - closure - 0 or more occurrences of the previous character or character group.
+ * + - 1 or more occurrences of the previous character or character group.
+ * ? - 0 or 1 occurrences of the previous character or character group.
+ * {n,m} - n to m occurrences of the previous character or character group, {n} is exactly n and {n,} is n or more.
+ * [] - character class - any one of the characters in the brackets, a-z is a range and a leading ^ negates the class.
  * | - union - the character or character group on the left OR the character or character group on the right.
  * concatenation (no explicit character) - characters or character groups next to each other are concatenated together.
  * 
+ * Special characters can be matched literally inside a class, like [*] or [[]. A ] first in a class and a - first or last are literal.
+ * 
+ * A RegularExpression is immutable once it's created, so it can be shared between threads.
+ * 
  * @author Chris Casson
  */
-public class RegularExpression {
+public final class RegularExpression {
 
     /**
      * The SyntaxTree is used to represent the regular expression in tree form.
      */
-    private class SyntaxTree {
+    static final class SyntaxTree {
+
+        // the content of a concatenation node, a noncharacter so it can't be confused with a literal
+        static final char CONCAT = '\uFFFF';
+        
+        // the content of a character class node
+        static final char CLASS = '[';
 
-        private SyntaxTree parentTree;
-        private SyntaxTree leftTree;
-        private SyntaxTree rightTree;
-        private final char content;
+        SyntaxTree parentTree;
+        SyntaxTree leftTree;
+        SyntaxTree rightTree;
+        final char content;
+        
+        // a class's ranges as sorted (low, high) pairs, null for every other node
+        final char[] ranges;
 
         private SyntaxTree(char content) {
             this.content = content;
+            this.ranges = null;
+        }
+
+        private SyntaxTree(char[] ranges) {
+            this.content = CLASS;
+            this.ranges = ranges;
+        }
+
+        /**
+         * 
+         * @return true if the node is a literal or a class, which match a single character, otherwise false
+         */
+        boolean isPosition() {
+            switch (content) {
+                case '*':
+                case '+':
+                case '?':
+                case '|':
+                case '(':
+                case CONCAT:
+                    return false;
+                default:
+                    return true;
+            }
         }
 
         private void setLeftTree(SyntaxTree leftTree) {
@@ -54,45 +101,331 @@ public class RegularExpression {
         }
     }
 
+    // the cache used by compile
+    private static final RegularExpressionCache COMPILE_CACHE = new RegularExpressionCache(256);
+    
+    // expressions small enough to match bit-parallel do that instead when their deterministic fsm has more states than this
+    static final int MAX_BIT_PARALLEL_DETERMINIZED_STATES = 1 << 14;
+    
+    // called with the stats of every expression that's compiled, if it's set
+    private static volatile Consumer<RegularExpressionStats> compileListener;
+
+    private final String expression;
     private final SyntaxTree syntaxTree;
-    private final FiniteStateMachine finiteStateMachine;
+    
+    // the ranges of characters the expression's classes are split into, null if it doesn't have any classes
+    private final Alphabet alphabet;
+    
+    // the literals every match contains, or null if there aren't any worth searching for
+    private final LiteralPrefilter prefilter;
+    
+    // the deterministic table is only set when the expression was determinized up front,
+    // otherwise the non-deterministic table is simulated or lazily determinized by each thread
+    private final DFATable table;
+    private final NFATable nonDeterministicTable;
+    private final ThreadLocal<LazyDFA> lazyDFA;
+    
+    // set instead of the deterministic table when the options ask for compact transitions
+    private final CompactDFATable compactTable;
+    
+    // only set when the expression is small and wasn't determinized
+    private final BitParallelMatcher bitParallelMatcher;
+    
+    // only set when the expression was loaded from a file
+    private final MappedDFATable mappedTable;
+    
+    // the sizes and times of each compile phase
+    private final RegularExpressionStats stats;
+    
+    // the tables for find and findAll are only built the first time they're needed
+    private volatile DFASearcher searcher;
+    
+    // the tables for matching UTF-8 bytes are only built the first time they're needed
+    private volatile Utf8Matcher utf8Matcher;
+    
+    // counts the states and transitions accepts uses, only set when profiling
+    private final DFAProfile profile;
+    
+    // the class generated for the table once accepts has been called codeGenerationThreshold times,
+    // accepts stops counting once the generation has started, whether or not a class comes out of it
+    private final int codeGenerationThreshold;
+    private final AtomicInteger acceptsCount = new AtomicInteger();
+    private volatile ForkJoinTask<?> codeGeneration;
+    private volatile Predicate<CharSequence> generatedMatcher;
 
     /**
      * Create a RegularExpression object for the given expression.
      * @param expression
      */
     public RegularExpression(String expression) {
+        this(expression, new RegularExpressionBuilder());
+    }
+
+    /**
+     * Create a RegularExpression object for the given expression using the builder's options.
+     * @param expression
+     * @param options
+     */
+    RegularExpression(String expression, RegularExpressionBuilder options) {
+        stats = new RegularExpressionStats(expression);
+        codeGenerationThreshold = options.getCodeGenerationThreshold();
+        
+        long phaseStart = System.nanoTime();
+        syntaxTree = generateSyntaxTree(expression);
+        stats.syntaxTreeNanos = System.nanoTime() - phaseStart;
+        stats.syntaxTreeNodeCount = postOrder(syntaxTree).size();
+        
+        this.expression = expression;
+        alphabet = Alphabet.of(syntaxTree);
+        prefilter = LiteralPrefilter.of(syntaxTree);
+        mappedTable = null;
+        boolean bitParallel = options.isBitParallel()
+                && GlushkovAutomaton.countPositions(syntaxTree) <= BitParallelMatcher.MAX_POSITIONS;
+        
+        // the deterministic fsm can be built straight from the followpos sets of the tree,
+        // every other way of matching starts from the numbered non-deterministic fsm
+        boolean determinize = options.isDeterminize();
+        boolean fromPositions = determinize && !options.isLazy() && options.isFollowPositions();
+        NFATable nfa = null;
+        FollowPositions positions = null;
+        DeterministicFSM deterministicFSM = null;
+        if (fromPositions) {
+            phaseStart = System.nanoTime();
+            positions = new FollowPositions(syntaxTree, alphabet);
+            stats.nonDeterministicNanos = System.nanoTime() - phaseStart;
+            stats.nonDeterministicStateCount = positions.positionCount;
+            stats.nonDeterministicTransitionCount = positions.getFollowCount();
+            
+            // apply the subset construction, small expressions give up on it if the table would be too big
+            phaseStart = System.nanoTime();
+            deterministicFSM = new DeterministicFSM(positions, bitParallel ? MAX_BIT_PARALLEL_DETERMINIZED_STATES : Integer.MAX_VALUE);
+            stats.deterministicNanos = System.nanoTime() - phaseStart;
+            if (deterministicFSM.states.size() > MAX_BIT_PARALLEL_DETERMINIZED_STATES && bitParallel) {
+                determinize = false;
+                deterministicFSM = null;
+            }
+        }
+        
+        // small expressions that aren't determinized skip the non-deterministic fsm and match with the positions in a long
+        bitParallelMatcher = determinize || !bitParallel ? null : new BitParallelMatcher(new GlushkovAutomaton(syntaxTree, alphabet));
+        if (!fromPositions && bitParallelMatcher == null) {
+            phaseStart = System.nanoTime();
+            nfa = new NFATable(generateNonDeterministicFSM(syntaxTree, alphabet), alphabet);
+            stats.nonDeterministicNanos = System.nanoTime() - phaseStart;
+            stats.nonDeterministicStateCount = nfa.stateCount;
+            stats.nonDeterministicTransitionCount = nfa.getTransitionCount();
+        }
+        
+        if (determinize && options.isLazy()) {
+            // only build the deterministic states when the input reaches them
+            table = null;
+            nonDeterministicTable = nfa;
+            long budget = options.getLazyCacheBytes();
+            lazyDFA = ThreadLocal.withInitial(() -> new LazyDFA(nonDeterministicTable, budget));
+            compactTable = null;
+            profile = null;
+            stats.tableBytes = nfa.getByteCount();
+        } else if (determinize) {
+            if (!fromPositions) {
+                // apply the subset construction
+                phaseStart = System.nanoTime();
+                deterministicFSM = new DeterministicFSM(nfa);
+                stats.deterministicNanos = System.nanoTime() - phaseStart;
+            }
+            stats.unminimizedStateCount = deterministicFSM.states.size();
+            
+            if (options.isMinimize()) {
+                phaseStart = System.nanoTime();
+                deterministicFSM = deterministicFSM.minimize();
+                stats.minimizeNanos = System.nanoTime() - phaseStart;
+            }
+            DFATable deterministicTable = new DFATable(deterministicFSM, alphabet);
+            nonDeterministicTable = null;
+            lazyDFA = null;
+            stats.stateCount = deterministicTable.stateCount;
+            if (options.isCompact()) {
+                // only the compact table is kept, the other tables are built from the syntax tree when they're needed
+                table = null;
+                compactTable = new CompactDFATable(deterministicTable);
+                profile = null;
+                stats.tableBytes = compactTable.getByteCount();
+            } else {
+                table = deterministicTable;
+                compactTable = null;
+                profile = options.isProfile() ? new DFAProfile(table) : null;
+                stats.tableBytes = table.getByteCount();
+            }
+        } else {
+            // skip the subset construction and simulate the non-deterministic fsm instead
+            table = null;
+            nonDeterministicTable = nfa;
+            lazyDFA = null;
+            compactTable = null;
+            profile = null;
+            stats.tableBytes = nfa != null ? nfa.getByteCount() : bitParallelMatcher.getByteCount();
+        }
+        
+        notifyCompileListener(stats);
+    }
+
+    /**
+     * Create a RegularExpression object that matches with a table loaded from a file.
+     * @param mappedTable
+     */
+    private RegularExpression(MappedDFATable mappedTable) {
+        stats = new RegularExpressionStats(mappedTable.expression);
+        
+        // parsing is cheap, the syntax tree is kept so the other tables can still be built when they're needed
+        long phaseStart = System.nanoTime();
+        expression = mappedTable.expression;
         syntaxTree = generateSyntaxTree(expression);
-        finiteStateMachine = generateDeterministicFSM(syntaxTree);
+        stats.syntaxTreeNanos = System.nanoTime() - phaseStart;
+        stats.syntaxTreeNodeCount = postOrder(syntaxTree).size();
+        
+        alphabet = Alphabet.of(syntaxTree);
+        prefilter = LiteralPrefilter.of(syntaxTree);
+        this.mappedTable = mappedTable;
+        bitParallelMatcher = null;
+        table = null;
+        nonDeterministicTable = null;
+        lazyDFA = null;
+        compactTable = null;
+        profile = null;
+        codeGenerationThreshold = 0;
+        stats.stateCount = mappedTable.stateCount;
+        stats.tableBytes = mappedTable.byteCount;
+        
+        notifyCompileListener(stats);
     }
 
-    private int getPrecedence(char a) {
-        switch (a) {
-            case '*':
-                return 1;
-            case '+':
-                return 2;
-            case '|':
-                return 3;
-            default:
-                return 4;
+    /**
+     * Create a RegularExpression object that matches with a table laid out again from another one's profile.
+     * @param source
+     * @param table
+     */
+    private RegularExpression(RegularExpression source, DFATable table) {
+        expression = source.expression;
+        syntaxTree = source.syntaxTree;
+        alphabet = source.alphabet;
+        prefilter = source.prefilter;
+        stats = source.stats;
+        codeGenerationThreshold = source.codeGenerationThreshold;
+        this.table = table;
+        mappedTable = null;
+        bitParallelMatcher = null;
+        nonDeterministicTable = null;
+        lazyDFA = null;
+        compactTable = null;
+        profile = null;
+    }
+
+    private static void notifyCompileListener(RegularExpressionStats stats) {
+        Consumer<RegularExpressionStats> listener = compileListener;
+        if (listener != null) {
+            listener.accept(stats);
         }
     }
 
-    private SyntaxTree generateSyntaxTree(String expression) {
+    /**
+     * Sets a listener that's called with the stats of every RegularExpression compiled after it's set,
+     * for example to export them as metrics. The listener is called on the thread that compiled the expression.
+     * 
+     * @param listener the listener, or null to stop listening
+     */
+    public static void setCompileListener(Consumer<RegularExpressionStats> listener) {
+        compileListener = listener;
+    }
+
+    /**
+     * 
+     * @return the sizes of the automata built for the expression and the time each compile phase took
+     */
+    public RegularExpressionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Loads an expression saved with save.
+     * 
+     * The file is memory mapped and accepts reads the deterministic FSM straight out of the mapping,
+     * so nothing is compiled or copied when the expression is loaded.
+     * The other matching methods build what they need from the expression the first time they're called.
+     * 
+     * @param path
+     * @return the loaded expression
+     * @throws IOException if the file can't be read or wasn't written by save
+     */
+    public static RegularExpression load(Path path) throws IOException {
+        return new RegularExpression(MappedDFATable.map(path));
+    }
+
+    /**
+     * Saves the expression's minimized deterministic FSM to a file so it can be loaded without being compiled again.
+     * 
+     * @param path the file to write, it's replaced if it exists
+     * @throws IOException if the file can't be written
+     */
+    public void save(Path path) throws IOException {
+        DFATable saved = table != null
+                ? table
+                : new DFATable(new DeterministicFSM(getNonDeterministicTable()).minimize(), alphabet);
+        MappedDFATable.write(saved, expression, path);
+    }
+
+    /**
+     * Gets the RegularExpression for the given expression from a shared cache,
+     * only compiling it if it isn't already cached.
+     * 
+     * @param expression
+     * @return the compiled expression
+     */
+    public static RegularExpression compile(String expression) {
+        return COMPILE_CACHE.get(expression);
+    }
+
+    /**
+     * 
+     * @return the cache used by compile, holding up to 256 expressions
+     */
+    public static RegularExpressionCache getCompileCache() {
+        return COMPILE_CACHE;
+    }
+
+    /**
+     * 
+     * @param expression
+     * @return the syntax tree for the expression
+     * @throws IllegalArgumentException if the expression isn't valid
+     */
+    static SyntaxTree generateSyntaxTree(String expression) {
         if (expression == null || expression.isEmpty()) {
             throw new IllegalArgumentException("Regular expression cannot be empty.");
         }
 
         // previousCharacterTree is used to keep track of where we need to add to
         SyntaxTree previousCharacterTree = null;
-        for (char character : expression.toCharArray()) {
+        
+        // nodeCount[0] is the number of nodes the tree can have so far, counting every copy the repetitions make
+        int[] nodeCount = {expression.length()};
+        for (int index = 0; index < expression.length(); index++) {
+            char character = expression.charAt(index);
             
             // create a tree with the current character
-            SyntaxTree currentTree = new SyntaxTree(character);
+            SyntaxTree currentTree;
+            if (character == '[') {
+                // the class is a single node holding its ranges
+                int end = findClassEnd(expression, index);
+                currentTree = new SyntaxTree(parseClass(expression, index + 1, end));
+                index = end;
+            } else if (character == SyntaxTree.CONCAT) {
+                // a literal can't have the same content as a concatenation, so it's a class with only itself
+                currentTree = new SyntaxTree(new char[] {character, character});
+            } else {
+                currentTree = new SyntaxTree(character);
+            }
             
-            if (character == '*') { // closure
-                // the first character can't be *
+            if (character == '*' || character == '+' || character == '?') { // closure, one or more, optional
+                // the first character can't be *, + or ?
                 if (previousCharacterTree == null) {
                     throw new IllegalArgumentException(expression + " is not a valid regular expression.");
                 }
@@ -105,16 +438,33 @@ public class RegularExpression {
                 
                 // make the previous character a child of the closure node
                 currentTree.setLeftTree(previousCharacterTree);
+            } else if (character == '{') { // repetition
+                // the repetition needs a complete character or character group to repeat
+                if (previousCharacterTree == null || previousCharacterTree.content == '('
+                        || (previousCharacterTree.content == '|' && previousCharacterTree.rightTree == null)) {
+                    throw new IllegalArgumentException(expression + " is not a valid regular expression.");
+                }
+                int end = expression.indexOf('}', index);
+                if (end == -1) {
+                    throw new IllegalArgumentException(expression + " is not a valid regular expression.");
+                }
+                
+                // replace the previous character with its copies, in between it and its parent
+                SyntaxTree parent = previousCharacterTree.parentTree;
+                currentTree = repeat(expression, previousCharacterTree, expression.substring(index + 1, end), nodeCount);
+                if (parent != null) {
+                    parent.replace(previousCharacterTree, currentTree);
+                }
+                index = end;
             } else if (character == '|') { // union
                 // the first character can't be |
                 if (previousCharacterTree == null) {
                     throw new IllegalArgumentException(expression + " is not a valid regular expression.");
                 }
                 
-                // walk up the tree to find the correct insertion point
+                // walk up the tree to find the correct insertion point,
+                // | binds looser than concatenation and *, +, ? and {n,m}, so it goes above all of them
                 while (previousCharacterTree.parentTree != null
-                        // | should go above characters with lower precendence (*, +, ...)
-                        && getPrecedence(previousCharacterTree.content) > getPrecedence(previousCharacterTree.parentTree.content)
                         // stop walking the tree if the left paren is encountered
                         && previousCharacterTree.parentTree.content != '(') {
                     
@@ -157,7 +507,7 @@ public class RegularExpression {
                         } else { // this happens when the union was in parenthesis
                             
                             // insert a concat in between the union and its parent (if it has a parent)
-                            SyntaxTree concatTree = new SyntaxTree('+');
+                            SyntaxTree concatTree = new SyntaxTree(SyntaxTree.CONCAT);
                             if (previousCharacterTree.parentTree != null) { // previous is not the root
                                 previousCharacterTree.parentTree.replace(previousCharacterTree, concatTree);
                             }
@@ -170,7 +520,7 @@ public class RegularExpression {
                         previousCharacterTree.setLeftTree(currentTree);
                     } else { 
                         // insert a concat in between the previous and its parent (if it has a parent)
-                        SyntaxTree concatTree = new SyntaxTree('+');
+                        SyntaxTree concatTree = new SyntaxTree(SyntaxTree.CONCAT);
                         if (previousCharacterTree.parentTree != null) { // previous is not the root
                             previousCharacterTree.parentTree.replace(previousCharacterTree, concatTree);
                         }
@@ -186,143 +536,726 @@ public class RegularExpression {
             previousCharacterTree = currentTree;
         }
 
-        // find the root of the tree and return it
+        // find the root of the tree
         SyntaxTree root = previousCharacterTree;
         while (root.parentTree != null) {
             root = root.parentTree;
         }
+        
+        // check every operator has its operands, a left paren left in the tree was never closed
+        for (SyntaxTree node : postOrder(root)) {
+            boolean valid;
+            if (node.content == '*' || node.content == '+' || node.content == '?') {
+                valid = node.leftTree != null;
+            } else if (node.content == SyntaxTree.CONCAT || node.content == '|') {
+                valid = node.leftTree != null && node.rightTree != null;
+            } else {
+                valid = node.content != '(' && node.leftTree == null && node.rightTree == null;
+            }
+            if (!valid) {
+                throw new IllegalArgumentException(expression + " is not a valid regular expression.");
+            }
+        }
         return root;
     }
 
+    // the most copies a repetition can make
+    private static final int MAX_REPETITIONS = 1000;
+    
+    // the most nodes the tree can have once every repetition is copied out, nested repetitions multiply
+    static final int MAX_EXPANDED_NODES = 1 << 20;
+
     /**
-     * Prints to standard out a visual representation of the tree with the top on the left and branching to the right.
+     * 
+     * @param expression
+     * @param start index of the [ that starts the class
+     * @return index of the ] that ends the class
      */
-    public void printSyntaxTree() {
-        printSyntaxTree(syntaxTree, 0);
-    }
-
-    private void printSyntaxTree(SyntaxTree tree, int tabsIndented) {
-        // print the left tree with 1 extra tab
-        if (tree.leftTree != null) {
-            printSyntaxTree(tree.leftTree, tabsIndented + 1);
+    private static int findClassEnd(String expression, int start) {
+        // a ] right after the [ or [^ is a literal, not the end
+        int end = start + 1;
+        if (end < expression.length() && expression.charAt(end) == '^') {
+            end++;
         }
-        // print the tabs
-        for (int i = 0; i < tabsIndented; i++) {
-            System.out.print("\t");
+        if (end < expression.length() && expression.charAt(end) == ']') {
+            end++;
         }
-        // print the current node's content
-        System.out.println(tree.content);
-        // print the right tree with 1 extra tab
-        if (tree.rightTree != null) {
-            printSyntaxTree(tree.rightTree, tabsIndented + 1);
+        end = expression.indexOf(']', end);
+        if (end == -1) {
+            throw new IllegalArgumentException(expression + " is not a valid regular expression.");
         }
+        return end;
     }
-    
-    private NonDeterministicFSM generateNonDeterministicFSM(SyntaxTree tree) {
-        // generate the non-deterministic fsm for the left tree
-        NonDeterministicFSM fsmLeft = null;
-        if (tree.leftTree != null) {
-            fsmLeft = generateNonDeterministicFSM(tree.leftTree);
+
+    /**
+     * Parses the inside of a class into sorted (low, high) pairs, without overlapping or touching ranges.
+     * 
+     * @param expression
+     * @param from index of the first character inside the brackets
+     * @param to index of the closing bracket
+     * @return the class's ranges
+     */
+    private static char[] parseClass(String expression, int from, int to) {
+        boolean negated = from < to && expression.charAt(from) == '^';
+        if (negated) {
+            from++;
         }
         
-        // generate the non-deterministic fsm for the right tree
-        NonDeterministicFSM fsmRight = null;
-        if (tree.rightTree != null) {
-            fsmRight = generateNonDeterministicFSM(tree.rightTree);
+        // each range as (low << 16 | high) so sorting puts them in order
+        int[] ranges = new int[to - from];
+        int rangeCount = 0;
+        for (int i = from; i < to; i++) {
+            char low = expression.charAt(i);
+            char high = low;
+            
+            // a - between two characters makes a range, anywhere else it's a literal
+            if (i + 2 < to && expression.charAt(i + 1) == '-') {
+                high = expression.charAt(i + 2);
+                if (high < low) {
+                    throw new IllegalArgumentException(expression + " is not a valid regular expression.");
+                }
+                i += 2;
+            }
+            ranges[rangeCount++] = low << 16 | high;
         }
+        Arrays.sort(ranges, 0, rangeCount);
         
-        NonDeterministicFSM fsm;
-        if (tree.content == '*') {
-            // the one to closure should be on the left
-            fsm = fsmLeft.closure();
-        } else if (tree.content == '+') {
-            // concatenate the left and right fsms
-            fsm = fsmLeft.concat(fsmRight);
-        } else if (tree.content == '|') {
-            // union the left and right fsms
-            fsm = fsmLeft.union(fsmRight);
-        } else {
-            // the tree content is a character literal
-            // create a new non-deterministic fsm for the character
-            fsm = new NonDeterministicFSM(tree.content);
+        // merge the ranges that overlap or touch
+        int[] merged = new int[rangeCount * 2];
+        int mergedCount = 0;
+        for (int r = 0; r < rangeCount; r++) {
+            int low = ranges[r] >>> 16;
+            int high = ranges[r] & 0xFFFF;
+            if (mergedCount > 0 && low <= merged[mergedCount - 1] + 1) {
+                merged[mergedCount - 1] = Math.max(merged[mergedCount - 1], high);
+            } else {
+                merged[mergedCount++] = low;
+                merged[mergedCount++] = high;
+            }
         }
-        return fsm;
-    }
-    
-    private DeterministicFSM generateDeterministicFSM(SyntaxTree tree) {
-        // first generate a non-deterministic fsm
-        NonDeterministicFSM nonDeterministicFSM = generateNonDeterministicFSM(tree);
-        
-        // get the initial states from the non-deterministic fsm
-        List<NonDeterministicState> initialStates = nonDeterministicFSM.states.stream()
-                .filter(s -> s.initialState)
-                .collect(Collectors.toList());
         
-        // there has to be exactly 1 initial state in order to generate a deterministic fsm
-        if (initialStates.size() != 1) {
-            throw new IllegalArgumentException("Cannot construct DeterministicFSM from NonDeterministicFSM that doesn't have exactly one initial state.");
+        if (negated) {
+            // the gaps between the ranges, and before and after them
+            int[] gaps = new int[mergedCount + 2];
+            int gapCount = 0;
+            int next = Character.MIN_VALUE;
+            for (int i = 0; i < mergedCount; i += 2) {
+                if (merged[i] > next) {
+                    gaps[gapCount++] = next;
+                    gaps[gapCount++] = merged[i] - 1;
+                }
+                next = merged[i + 1] + 1;
+            }
+            if (next <= Character.MAX_VALUE) {
+                gaps[gapCount++] = next;
+                gaps[gapCount++] = Character.MAX_VALUE;
+            }
+            if (gapCount == 0) {
+                throw new IllegalArgumentException(expression + " is not a valid regular expression.");
+            }
+            merged = gaps;
+            mergedCount = gapCount;
         }
         
-        // get the initial state
-        NonDeterministicState oldInitialState = initialStates.get(0);
-        
-        // create a conversion map to store the states that are converted to deterministic states
-        Map<String, DeterministicState> conversionMap = new HashMap<>();
+        char[] result = new char[mergedCount];
+        for (int i = 0; i < mergedCount; i++) {
+            result[i] = (char) merged[i];
+        }
+        return result;
+    }
+
+    /**
+     * Builds the tree for n to m copies of the given tree.
+     * 
+     * The given tree is used as the first copy, and the copies share their classes' ranges.
+     * Copies past n are nested, x{1,3} is x(x(x)?)?, so every optional copy only follows the one before it.
+     * x{n,} is n - 1 copies and then x+.
+     * 
+     * @param expression
+     * @param tree the tree to repeat
+     * @param bounds the text between the braces
+     * @param nodeCount nodeCount[0] is the number of nodes in the expression so far, the copies are added to it
+     * @return the tree for the repetition
+     */
+    private static SyntaxTree repeat(String expression, SyntaxTree tree, String bounds, int[] nodeCount) {
+        int min;
+        int max;
+        try {
+            int comma = bounds.indexOf(',');
+            if (comma == -1) {
+                min = Integer.parseInt(bounds);
+                max = min;
+            } else {
+                min = Integer.parseInt(bounds.substring(0, comma));
+                max = comma == bounds.length() - 1 ? -1 : Integer.parseInt(bounds.substring(comma + 1));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(expression + " is not a valid regular expression.", e);
+        }
+        if (min < 0 || (max != -1 && (max < min || max == 0)) || Math.max(min, max) > MAX_REPETITIONS) {
+            throw new IllegalArgumentException(expression + " is not a valid regular expression.");
+        }
         
-        // create a deterministic fsm
-        DeterministicFSM fsm = new DeterministicFSM();
+        // each copy past the first adds the tree's nodes, and every copy can add a concatenation and a ?,
+        // the tree already counts the copies of any repetitions inside it
+        int copies = Math.max(Math.max(min, max), 1);
+        long expandedCount = nodeCount[0] + (long) (copies - 1) * postOrder(tree).size() + 2L * copies;
+        if (expandedCount > MAX_EXPANDED_NODES) {
+            throw new IllegalArgumentException(expression + " has more than " + MAX_EXPANDED_NODES + " nodes once its repetitions are expanded.");
+        }
+        nodeCount[0] = (int) expandedCount;
         
-        // convert the initial state and set it as the fsm initial state
-        // convertState will recursively call convertState for states referred to by oldInitialState
-        fsm.initialState = convertState(conversionMap, String.valueOf(oldInitialState.hashCode()), oldInitialState);
+        if (max == -1 && min <= 1) {
+            // x{0,} is x* and x{1,} is x+
+            SyntaxTree closure = new SyntaxTree(min == 0 ? '*' : '+');
+            closure.setLeftTree(tree);
+            return closure;
+        }
         
-        // set fsm.states to the converted states in the conversion map
-        fsm.states = conversionMap.values();
-        return fsm;
+        // build from the end so each concatenation's right tree is ready when it's created
+        SyntaxTree result;
+        int required;
+        if (max == -1) {
+            result = new SyntaxTree('+');
+            result.setLeftTree(copyTree(tree));
+            required = min - 1;
+        } else if (max > min) {
+            result = null;
+            for (int i = max - 1; i >= min; i--) {
+                // without any required copies the outermost optional copy is the first one
+                SyntaxTree optional = new SyntaxTree('?');
+                optional.setLeftTree(concat(i == 0 ? tree : copyTree(tree), result));
+                result = optional;
+            }
+            required = min;
+        } else {
+            result = null;
+            required = min;
+        }
+        for (int i = required - 1; i >= 0; i--) {
+            result = concat(i == 0 ? tree : copyTree(tree), result);
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return the concatenation of the trees, or the left tree if the right one is null
+     */
+    private static SyntaxTree concat(SyntaxTree left, SyntaxTree right) {
+        if (right == null) {
+            return left;
+        }
+        SyntaxTree concatTree = new SyntaxTree(SyntaxTree.CONCAT);
+        concatTree.setLeftTree(left);
+        concatTree.setRightTree(right);
+        return concatTree;
+    }
+
+    /**
+     * 
+     * @param tree
+     * @return a copy of the tree, sharing the classes' ranges
+     */
+    private static SyntaxTree copyTree(SyntaxTree tree) {
+        // each node's trees are copied before it in the post-order, their copies are on top of the stack
+        Deque<SyntaxTree> copies = new ArrayDeque<>();
+        for (SyntaxTree node : postOrder(tree)) {
+            SyntaxTree copy = node.ranges != null ? new SyntaxTree(node.ranges) : new SyntaxTree(node.content);
+            SyntaxTree right = node.rightTree != null ? copies.pop() : null;
+            if (node.leftTree != null) {
+                copy.setLeftTree(copies.pop());
+            }
+            if (right != null) {
+                copy.setRightTree(right);
+            }
+            copies.push(copy);
+        }
+        return copies.pop();
+    }
+
+    /**
+     * Prints to standard out a visual representation of the tree with the top on the left and branching to the right.
+     */
+    public void printSyntaxTree() {
+        // walk the tree in order with a stack, each node printed after its left tree and before its right tree,
+        // indented 1 extra tab for each level, so very deep trees can't overflow the call stack
+        Deque<SyntaxTree> nodes = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        SyntaxTree tree = syntaxTree;
+        int depth = 0;
+        while (tree != null || !nodes.isEmpty()) {
+            // go down the left trees first
+            while (tree != null) {
+                nodes.push(tree);
+                depths.push(depth);
+                tree = tree.leftTree;
+                depth++;
+            }
+            tree = nodes.pop();
+            depth = depths.pop();
+            
+            // print the tabs
+            for (int i = 0; i < depth; i++) {
+                System.out.print("\t");
+            }
+            // print the current node's content, with concatenations as . and classes as their ranges
+            if (tree.content == SyntaxTree.CONCAT) {
+                System.out.println('.');
+            } else if (tree.ranges != null) {
+                StringBuilder ranges = new StringBuilder("[");
+                for (int i = 0; i < tree.ranges.length; i += 2) {
+                    ranges.append(tree.ranges[i]);
+                    if (tree.ranges[i + 1] != tree.ranges[i]) {
+                        ranges.append('-').append(tree.ranges[i + 1]);
+                    }
+                }
+                System.out.println(ranges.append(']'));
+            } else {
+                System.out.println(tree.content);
+            }
+            
+            // then the right tree
+            tree = tree.rightTree;
+            depth++;
+        }
     }
     
-    private DeterministicState convertState(Map<String, DeterministicState> conversionMap, String key, NonDeterministicState state) {
-        // base case - the key already exists, just return the value
-        if (conversionMap.containsKey(key)) {
-            return conversionMap.get(key);
+    /**
+     * Lists the nodes of the tree with each node after its left and right trees.
+     * The tree is walked with an explicit stack, so machine generated expressions with very deep trees can't overflow the call stack.
+     * 
+     * @param tree
+     * @return the nodes of the tree in post-order
+     */
+    static List<SyntaxTree> postOrder(SyntaxTree tree) {
+        // visit node, right, left with a stack, the reverse of that is left, right, node
+        List<SyntaxTree> nodes = new ArrayList<>();
+        Deque<SyntaxTree> stack = new ArrayDeque<>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            SyntaxTree node = stack.pop();
+            nodes.add(node);
+            if (node.leftTree != null) {
+                stack.push(node.leftTree);
+            }
+            if (node.rightTree != null) {
+                stack.push(node.rightTree);
+            }
+        }
+        Collections.reverse(nodes);
+        return nodes;
+    }
+    
+    /**
+     * 
+     * @param tree
+     * @param alphabet the alphabet for the tree's classes, null if it doesn't have any
+     * @return the non-deterministic FSM for the tree
+     */
+    static NonDeterministicFSM generateNonDeterministicFSM(SyntaxTree tree, Alphabet alphabet) {
+        // each node's fsm is built from the fsms of its trees, which are on top of the stack
+        Deque<NonDeterministicFSM> fsms = new ArrayDeque<>();
+        for (SyntaxTree node : postOrder(tree)) {
+            if (node.content == '*') {
+                // the one to closure should be on the left
+                fsms.push(fsms.pop().closure());
+            } else if (node.content == '+') {
+                fsms.push(fsms.pop().oneOrMore());
+            } else if (node.content == '?') {
+                fsms.push(fsms.pop().optional());
+            } else if (node.content == SyntaxTree.CONCAT) {
+                // concatenate the left and right fsms
+                NonDeterministicFSM fsmRight = fsms.pop();
+                fsms.push(fsms.pop().concat(fsmRight));
+            } else if (node.content == '|') {
+                // union the left and right fsms
+                NonDeterministicFSM fsmRight = fsms.pop();
+                fsms.push(fsms.pop().union(fsmRight));
+            } else if (node.ranges != null) {
+                // one edge for each range of the alphabet inside the class
+                fsms.push(new NonDeterministicFSM(alphabet.representatives(node.ranges)));
+            } else {
+                // the node content is a character literal
+                // create a new non-deterministic fsm for the character
+                fsms.push(new NonDeterministicFSM(node.content));
+            }
+        }
+        return fsms.pop();
+    }
+    
+    /**
+     * 
+     * @return the number of states in the deterministic FSM used for matching,
+     * or 0 if the expression wasn't determinized up front
+     */
+    public int getStateCount() {
+        if (table != null) {
+            return table.stateCount;
+        } else if (mappedTable != null) {
+            return mappedTable.stateCount;
+        } else if (compactTable != null) {
+            return compactTable.stateCount;
+        }
+        return 0;
+    }
+    
+    /**
+     * 
+     * @return the number of states in the deterministic FSM before it was minimized,
+     * or 0 if the expression wasn't determinized up front
+     */
+    public int getUnminimizedStateCount() {
+        return stats.unminimizedStateCount;
+    }
+    
+    /**
+     * Checks a large input using every core of the common ForkJoinPool.
+     * 
+     * @param input
+     * @return true if the input string matches the regular expression, false otherwise.
+     * @see #acceptsParallel(CharSequence, ForkJoinPool)
+     */
+    public boolean acceptsParallel(CharSequence input) {
+        return acceptsParallel(input, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Checks a large input by splitting it into chunks that are matched at the same time on the given pool.
+     * 
+     * Each chunk is matched from every state of the deterministic FSM, so this works best
+     * for expressions with a small number of states and inputs of at least a few megabytes.
+     * Shorter inputs, and expressions that weren't determinized up front, are matched on the calling thread.
+     * 
+     * @param input
+     * @param pool
+     * @return true if the input string matches the regular expression, false otherwise.
+     */
+    public boolean acceptsParallel(CharSequence input, ForkJoinPool pool) {
+        if (table == null) {
+            return accepts(input);
+        }
+        return ParallelMatcher.accepts(table, input, pool);
+    }
+    
+    /**
+     * Checks every input in the list, using the common ForkJoinPool for large lists.
+     * 
+     * @param inputs
+     * @return result[i] is true if the i-th input matches the regular expression
+     */
+    public boolean[] acceptsAll(List<? extends CharSequence> inputs) {
+        CharSequence[] array = inputs.toArray(new CharSequence[inputs.size()]);
+        boolean[] out = new boolean[array.length];
+        acceptsAll(array, out, ForkJoinPool.commonPool());
+        return out;
+    }
+    
+    /**
+     * Checks every input in the array, using the common ForkJoinPool for large arrays.
+     * 
+     * @param inputs
+     * @param out out[i] is set to true if inputs[i] matches the regular expression, false otherwise
+     */
+    public void acceptsAll(CharSequence[] inputs, boolean[] out) {
+        acceptsAll(inputs, out, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Checks every input in the array. Arrays of a few thousand inputs or more are split across the pool.
+     * 
+     * @param inputs
+     * @param out out[i] is set to true if inputs[i] matches the regular expression, false otherwise
+     * @param pool
+     */
+    public void acceptsAll(CharSequence[] inputs, boolean[] out, ForkJoinPool pool) {
+        checkBatch(inputs, out);
+        BatchMatcher.acceptsAll(table, this::accepts, inputs, out, pool);
+    }
+    
+    /**
+     * Checks every input in the array on the calling thread.
+     * 
+     * When the expression was determinized up front, the inputs are matched several at a time in lockstep,
+     * so the table lookups for the inputs overlap instead of waiting on each other.
+     * Four inputs are matched at a time, or eight if the table is too large for the cache.
+     * 
+     * @param inputs
+     * @param out out[i] is set to true if inputs[i] matches the regular expression, false otherwise
+     */
+    public void acceptsAllInterleaved(CharSequence[] inputs, boolean[] out) {
+        checkBatch(inputs, out);
+        BatchMatcher.acceptsRange(table, this::accepts, inputs, out, 0, inputs.length);
+    }
+    
+    /**
+     * Checks every input in the array on the calling thread, the given number of inputs at a time.
+     * With one lane the inputs are matched one after the other.
+     * 
+     * @param inputs
+     * @param out out[i] is set to true if inputs[i] matches the regular expression, false otherwise
+     * @param lanes the number of inputs to match in lockstep, 1, 4 or 8
+     */
+    public void acceptsAllInterleaved(CharSequence[] inputs, boolean[] out, int lanes) {
+        if (lanes != 1 && lanes != 4 && lanes != 8) {
+            throw new IllegalArgumentException("lanes must be 1, 4 or 8");
+        }
+        checkBatch(inputs, out);
+        if (table == null) {
+            BatchMatcher.acceptsRange(null, this::accepts, inputs, out, 0, inputs.length);
         } else {
-            // create a new deterministic state and add to the conversionMap
-            DeterministicState newState = new DeterministicState();
-            newState.acceptingState = state.acceptingState;
-            conversionMap.put(key, newState);
-            
-            // for each transition
-            for (Map.Entry<Character, Collection<State>> transition : state.transitions.entrySet()) {
-                // get the key (the char) and the value (next states)
-                Character character = transition.getKey();
-                Collection<State> transitionStates = transition.getValue();
-                
-                // build a key for the combined state (comma separated list of next state hash codes)
-                // and build a non-deterministic state that contains the transitions for all states in transitionStates
-                String combinedStateKey = "";
-                NonDeterministicState combinedState = new NonDeterministicState();
-                for (State s : transitionStates) {
-                    combinedStateKey += String.valueOf(s.hashCode()) + ",";
-                    combinedState.mergeTransitions(s.getTransitionsInNonDeterministicForm());
+            BatchMatcher.acceptsInterleaved(table, inputs, out, 0, inputs.length, lanes);
+        }
+    }
+    
+    private static void checkBatch(CharSequence[] inputs, boolean[] out) {
+        if (out.length < inputs.length) {
+            throw new IllegalArgumentException("out is shorter than inputs");
+        }
+    }
+    
+    /**
+     * 
+     * @return the literals every match contains, or null if there aren't any worth searching for
+     */
+    LiteralPrefilter getPrefilter() {
+        return prefilter;
+    }
+    
+    /**
+     * 
+     * @return a copy of the counts accepts has made so far, or null if the expression isn't being profiled
+     */
+    public RegularExpressionProfile getProfile() {
+        return profile == null ? null : profile.snapshot();
+    }
+    
+    /**
+     * Lays the deterministic FSM out again using the counts from profiling,
+     * so hot states and the states they usually go to next are next to each other in the table.
+     * 
+     * @return a new RegularExpression with the new layout that isn't being profiled
+     * @throws IllegalStateException if the expression isn't being profiled
+     */
+    public RegularExpression relayout() {
+        if (profile == null) {
+            throw new IllegalStateException("Only a profiled regular expression can be laid out again.");
+        }
+        return new RegularExpression(this, new DFATable(table, profile.layout()));
+    }
+    
+    /**
+     * 
+     * @return the compact table, or null if the expression doesn't use one
+     */
+    CompactDFATable getCompactTable() {
+        return compactTable;
+    }
+    
+    /**
+     * 
+     * @return the deterministic table, or null if the expression wasn't determinized up front
+     */
+    DFATable getTable() {
+        return table;
+    }
+    
+    /**
+     * 
+     * @return true if accepts is using a class generated for the expression, otherwise false
+     */
+    boolean isGenerated() {
+        return generatedMatcher != null;
+    }
+    
+    /**
+     * Waits for the class generation started by accepts to finish, if it has started.
+     */
+    void awaitCodeGeneration() {
+        ForkJoinTask<?> generation = codeGeneration;
+        if (generation != null) {
+            generation.join();
+        }
+    }
+    
+    /**
+     * 
+     * @return the number of calls to accepts counted towards the code generation threshold
+     */
+    int getAcceptsCount() {
+        return acceptsCount.get();
+    }
+    
+    /**
+     * 
+     * @return a new matcher that can be fed the input a piece at a time
+     */
+    public IncrementalMatcher matcher() {
+        if (table != null) {
+            return new IncrementalMatcher(table);
+        } else {
+            return new IncrementalMatcher(getNonDeterministicTable());
+        }
+    }
+    
+    /**
+     * 
+     * @param input
+     * @return the leftmost-longest match in the input, or null if there isn't one
+     */
+    public Match find(CharSequence input) {
+        return find(input, 0);
+    }
+    
+    /**
+     * 
+     * @param input
+     * @param from index to start searching from
+     * @return the leftmost-longest match in the input starting at or after from, or null if there isn't one
+     */
+    public Match find(CharSequence input, int from) {
+        if (from < 0 || from > input.length()) {
+            throw new IndexOutOfBoundsException("from " + from + ", length " + input.length());
+        }
+        if (prefilter != null) {
+            // no match can start before the first place the literals are found
+            from = prefilter.firstCandidate(input, from);
+            if (from == -1) {
+                return null;
+            }
+        }
+        return getSearcher().find(input, from);
+    }
+    
+    /**
+     * 
+     * @param input
+     * @return the leftmost-longest matches in the input that don't overlap, in order
+     */
+    public List<Match> findAll(CharSequence input) {
+        if (prefilter != null && prefilter.firstCandidate(input, 0) == -1) {
+            return new ArrayList<>();
+        }
+        return getSearcher().findAll(input);
+    }
+    
+    /**
+     * 
+     * @return the non-deterministic table for the expression, generated from the syntax tree if it wasn't kept
+     */
+    NFATable getNonDeterministicTable() {
+        if (nonDeterministicTable != null) {
+            return nonDeterministicTable;
+        } else {
+            return new NFATable(generateNonDeterministicFSM(syntaxTree, alphabet), alphabet);
+        }
+    }
+    
+    private DFASearcher getSearcher() {
+        DFASearcher result = searcher;
+        if (result == null) {
+            synchronized (this) {
+                result = searcher;
+                if (result == null) {
+                    // the forward and reverse tables are built from the same syntax tree
+                    NFATable nfa = getNonDeterministicTable();
+                    DFATable anchored = table != null
+                            ? table
+                            : new DFATable(new DeterministicFSM(nfa).minimize(), alphabet);
+                    result = new DFASearcher(anchored, nfa);
+                    searcher = result;
                 }
-                
-                // remove the last comma from the transition key
-                int lastComma = combinedStateKey.lastIndexOf(",");
-                if (lastComma != -1) {
-                    combinedStateKey = combinedStateKey.substring(0, lastComma);
+            }
+        }
+        return result;
+    }
+    
+    private Utf8Matcher getUtf8Matcher() {
+        Utf8Matcher result = utf8Matcher;
+        if (result == null) {
+            synchronized (this) {
+                result = utf8Matcher;
+                if (result == null) {
+                    result = new Utf8Matcher(getNonDeterministicTable());
+                    utf8Matcher = result;
                 }
-                
-                // the combined state is accepting if any states in transitionStates are accepting
-                combinedState.acceptingState = transitionStates.stream().anyMatch(s -> s.acceptingState);
-                
-                // convert the combined non-deterministic state to a deterministic state
-                DeterministicState deterministicTransitionState = convertState(conversionMap, combinedStateKey, combinedState);
-                
-                // add the deterministic transition to newState
-                newState.addTransition(character, deterministicTransitionState);
             }
-            return newState;
         }
+        return result;
+    }
+    
+    /**
+     * Checks UTF-8 encoded input without decoding it.
+     * 
+     * @param utf8
+     * @return true if the input matches the regular expression, false otherwise.
+     */
+    public boolean accepts(byte[] utf8) {
+        return accepts(utf8, 0, utf8.length);
+    }
+    
+    /**
+     * Checks UTF-8 encoded input without decoding it.
+     * 
+     * @param utf8
+     * @param offset index of the first byte
+     * @param length number of bytes
+     * @return true if the input matches the regular expression, false otherwise.
+     */
+    public boolean accepts(byte[] utf8, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > utf8.length - length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", array length " + utf8.length);
+        }
+        return getUtf8Matcher().accepts(utf8, offset, offset + length);
+    }
+    
+    /**
+     * Checks the UTF-8 encoded bytes between the buffer's position and limit without decoding them.
+     * Direct and memory mapped buffers are read in place. The buffer's position isn't moved.
+     * 
+     * @param utf8
+     * @return true if the input matches the regular expression, false otherwise.
+     */
+    public boolean accepts(ByteBuffer utf8) {
+        return getUtf8Matcher().accepts(utf8);
+    }
+    
+    /**
+     * 
+     * @param utf8
+     * @return the leftmost-longest match in the UTF-8 encoded input with byte offsets, or null if there isn't one
+     */
+    public Match find(byte[] utf8) {
+        return find(ByteBuffer.wrap(utf8));
+    }
+    
+    /**
+     * 
+     * @param utf8
+     * @return the leftmost-longest match in the UTF-8 encoded bytes between the buffer's position and limit,
+     * with byte offsets from the position, or null if there isn't one
+     */
+    public Match find(ByteBuffer utf8) {
+        return getUtf8Matcher().find(utf8);
+    }
+    
+    /**
+     * 
+     * @param utf8
+     * @return the leftmost-longest matches in the UTF-8 encoded input with byte offsets, in order
+     */
+    public List<Match> findAll(byte[] utf8) {
+        return findAll(ByteBuffer.wrap(utf8));
+    }
+    
+    /**
+     * 
+     * @param utf8
+     * @return the leftmost-longest matches in the UTF-8 encoded bytes between the buffer's position and limit,
+     * with byte offsets from the position, in order
+     */
+    public List<Match> findAll(ByteBuffer utf8) {
+        return getUtf8Matcher().findAll(utf8);
     }
     
     /**
@@ -330,7 +1263,39 @@ public class RegularExpression {
      * @param input
      * @return true if the input string matches the regular expression, false otherwise.
      */
-    public boolean accepts(String input) {
-        return finiteStateMachine.accepts(input);
+    public boolean accepts(CharSequence input) {
+        if (profile != null) {
+            return profile.accepts(input);
+        } else if (table != null) {
+            Predicate<CharSequence> generated = generatedMatcher;
+            if (generated != null) {
+                return generated.test(input);
+            }
+            if (codeGenerationThreshold > 0 && codeGeneration == null && acceptsCount.incrementAndGet() == codeGenerationThreshold) {
+                // only the thread that reaches the threshold starts the generation, and it doesn't wait for the compiler,
+                // the table is used until the class is published
+                codeGeneration = ForkJoinPool.commonPool().submit(() -> {
+                    generatedMatcher = MatcherGenerator.generate(table);
+                });
+            }
+            return table.accepts(input);
+        } else if (compactTable != null) {
+            return compactTable.accepts(input);
+        } else if (mappedTable != null) {
+            return mappedTable.accepts(input);
+        }
+        
+        // the tables stop at the first character that can't match,
+        // but the other engines cost more per character than searching for the literals
+        if (prefilter != null && !prefilter.mayAccept(input)) {
+            return false;
+        }
+        if (bitParallelMatcher != null) {
+            return bitParallelMatcher.accepts(input);
+        } else if (lazyDFA != null) {
+            return lazyDFA.get().accepts(input);
+        } else {
+            return new NFASimulator(nonDeterministicTable).accepts(input);
+        }
     }
 }
@@ -0,0 +1,232 @@
+package casson.regexp;
+
+/**
+ * Builds RegularExpression objects with options other than the defaults.
+ *
+ * @author Chris Casson
+ */
+public class RegularExpressionBuilder {
+
+    private boolean determinize = true;
+    private boolean minimize = true;
+    private boolean lazy = false;
+    private boolean bitParallel = true;
+    private long lazyCacheBytes = 1 << 20;
+    private int codeGenerationThreshold = 0;
+    private boolean profile = false;
+    private boolean compact = false;
+    private boolean followPositions = true;
+
+    public RegularExpressionBuilder() {
+    }
+
+    /**
+     * Creates a builder with the same options as the given builder.
+     * 
+     * @param other 
+     */
+    RegularExpressionBuilder(RegularExpressionBuilder other) {
+        determinize = other.determinize;
+        minimize = other.minimize;
+        lazy = other.lazy;
+        bitParallel = other.bitParallel;
+        lazyCacheBytes = other.lazyCacheBytes;
+        codeGenerationThreshold = other.codeGenerationThreshold;
+        profile = other.profile;
+        compact = other.compact;
+        followPositions = other.followPositions;
+    }
+
+    /**
+     * Sets whether the non-deterministic FSM is converted to a deterministic FSM.
+     * 
+     * Determinizing makes matching faster but costs more to compile,
+     * so expressions that are only used once can skip it and be matched by simulating the non-deterministic FSM.
+     * Defaults to true.
+     *
+     * @param determinize
+     * @return this builder
+     */
+    public RegularExpressionBuilder determinize(boolean determinize) {
+        this.determinize = determinize;
+        return this;
+    }
+
+    /**
+     * Sets whether the deterministic FSM is minimized after it's generated.
+     * 
+     * Minimizing merges equivalent states so the compiled expression uses less memory.
+     * Defaults to true.
+     *
+     * @param minimize
+     * @return this builder
+     */
+    public RegularExpressionBuilder minimize(boolean minimize) {
+        this.minimize = minimize;
+        return this;
+    }
+
+    /**
+     * Sets whether deterministic states are only built when the input first reaches them.
+     * 
+     * Lazy expressions are fast to create and use a bounded amount of memory even for expressions
+     * whose deterministic FSM would be huge, but the first inputs are slower to match.
+     * Each thread matching the expression keeps its own cache of states.
+     * Defaults to false.
+     *
+     * @param lazy
+     * @return this builder
+     */
+    public RegularExpressionBuilder lazy(boolean lazy) {
+        this.lazy = lazy;
+        return this;
+    }
+
+    /**
+     * Sets whether expressions match with the bits of a long when they're small enough and a table isn't worth it.
+     * 
+     * Expressions with at most 64 character literals and classes can skip building the non-deterministic FSM
+     * and match by keeping the set of active positions in a long, which is cheap to create and fast to match.
+     * They do when they aren't determinized, and when they are but their deterministic FSM would have more than
+     * 16384 states. Smaller deterministic FSMs are cheaper per character, so they're still matched with a table.
+     * Defaults to true.
+     *
+     * @param bitParallel
+     * @return this builder
+     */
+    public RegularExpressionBuilder bitParallel(boolean bitParallel) {
+        this.bitParallel = bitParallel;
+        return this;
+    }
+
+    /**
+     * Sets the number of bytes each thread's cache of lazily built states can use before it's cleared.
+     * Defaults to 1 MB.
+     *
+     * @param lazyCacheBytes
+     * @return this builder
+     */
+    public RegularExpressionBuilder lazyCacheBytes(long lazyCacheBytes) {
+        if (lazyCacheBytes < 0) {
+            throw new IllegalArgumentException("The lazy cache size cannot be negative.");
+        }
+        this.lazyCacheBytes = lazyCacheBytes;
+        return this;
+    }
+
+    /**
+     * Sets the number of calls to accepts after which a class specialized for the expression is generated and used instead of the table.
+     * 
+     * Generating the class takes a while, so it's only worth it for expressions that are used a lot.
+     * It's generated on the common ForkJoinPool, and accepts keeps using the table until it's ready.
+     * The class is only generated for small deterministic FSMs and when a Java compiler is available.
+     * Defaults to 0, which never generates a class.
+     *
+     * @param codeGenerationThreshold
+     * @return this builder
+     */
+    public RegularExpressionBuilder codeGenerationThreshold(int codeGenerationThreshold) {
+        if (codeGenerationThreshold < 0) {
+            throw new IllegalArgumentException("The code generation threshold cannot be negative.");
+        }
+        this.codeGenerationThreshold = codeGenerationThreshold;
+        return this;
+    }
+
+    /**
+     * Sets whether accepts counts how often each deterministic state and transition is used.
+     * 
+     * The counts show which states dominate on real input, and RegularExpression.relayout uses them
+     * to put hot states next to each other in the table. Counting slows matching down,
+     * so it's meant for a sample of the traffic. It only applies to expressions that are determinized up front.
+     * Defaults to false.
+     *
+     * @param profile
+     * @return this builder
+     */
+    public RegularExpressionBuilder profile(boolean profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * Sets whether the deterministic FSM stores each state's transitions in the smallest encoding for that state
+     * instead of a full row per state.
+     * 
+     * States with a single transition store one character and one state, states with a few store sorted character ranges,
+     * and only states with lots of transitions keep a full row. This makes large deterministic FSMs much smaller
+     * at the cost of slightly slower matching. Only accepts uses the compact table,
+     * the tables for the other ways of matching are built when they're first needed.
+     * It only applies to expressions that are determinized up front, and it replaces profiling.
+     * Defaults to false.
+     *
+     * @param compact
+     * @return this builder
+     */
+    public RegularExpressionBuilder compact(boolean compact) {
+        this.compact = compact;
+        return this;
+    }
+
+    /**
+     * Sets whether the deterministic FSM is built straight from the syntax tree's followpos sets
+     * instead of from the non-deterministic FSM.
+     * 
+     * Both give the same deterministic FSM, but building it from the positions doesn't create the
+     * non-deterministic states and their transition maps, so compiling allocates less and takes less time.
+     * It only applies to expressions that are determinized up front and not lazily.
+     * Defaults to true.
+     *
+     * @param followPositions
+     * @return this builder
+     */
+    public RegularExpressionBuilder followPositions(boolean followPositions) {
+        this.followPositions = followPositions;
+        return this;
+    }
+
+    boolean isDeterminize() {
+        return determinize;
+    }
+
+    boolean isMinimize() {
+        return minimize;
+    }
+
+    boolean isLazy() {
+        return lazy;
+    }
+
+    boolean isBitParallel() {
+        return bitParallel;
+    }
+
+    long getLazyCacheBytes() {
+        return lazyCacheBytes;
+    }
+
+    int getCodeGenerationThreshold() {
+        return codeGenerationThreshold;
+    }
+
+    boolean isProfile() {
+        return profile;
+    }
+
+    boolean isCompact() {
+        return compact;
+    }
+
+    boolean isFollowPositions() {
+        return followPositions;
+    }
+
+    /**
+     *
+     * @param expression
+     * @return a RegularExpression for the given expression using this builder's options
+     */
+    public RegularExpression toRegularExpression(String expression) {
+        return new RegularExpression(expression, this);
+    }
+}
@@ -0,0 +1,198 @@
+package casson.regexp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread safe cache of compiled RegularExpressions keyed by their expression.
+ * 
+ * The least recently used expressions are evicted once the total weight of the cache passes its maximum.
+ * When several threads ask for the same expression at the same time it's only compiled once,
+ * the other threads wait for that compile to finish.
+ * Expressions are compiled outside of the cache's lock, so one slow compile doesn't block other lookups.
+ *
+ * @author Chris Casson
+ */
+public class RegularExpressionCache {
+
+    /**
+     * A cached expression, which might still be compiling.
+     */
+    private static class Entry {
+
+        final CompletableFuture<RegularExpression> future = new CompletableFuture<>();
+        
+        // the weight isn't known until the expression is compiled
+        long weight;
+        boolean compiled;
+    }
+
+    private final RegularExpressionBuilder builder;
+    private final long maximumWeight;
+    private final ToLongFunction<RegularExpression> weigher;
+
+    // in access order, so the first entry is the least recently used
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalWeight;
+    
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Creates a cache that holds up to maximumSize expressions compiled with the default options.
+     * 
+     * @param maximumSize 
+     */
+    public RegularExpressionCache(int maximumSize) {
+        this(maximumSize, re -> 1, new RegularExpressionBuilder());
+    }
+
+    /**
+     * Creates a cache bounded by the total weight of the expressions in it.
+     * 
+     * @param maximumWeight the most the weights of the cached expressions can add up to
+     * @param weigher gives the weight of a compiled expression, for example its table size in bytes
+     * @param builder the options to compile the expressions with, later changes to the builder don't affect the cache
+     */
+    public RegularExpressionCache(long maximumWeight, ToLongFunction<RegularExpression> weigher, RegularExpressionBuilder builder) {
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("The maximum weight cannot be negative.");
+        }
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.builder = new RegularExpressionBuilder(builder);
+    }
+
+    /**
+     * 
+     * @param expression
+     * @return the compiled expression, compiling and caching it if it isn't in the cache
+     */
+    public RegularExpression get(String expression) {
+        Entry entry;
+        boolean compile = false;
+        synchronized (this) {
+            entry = entries.get(expression);
+            if (entry == null) {
+                // this thread compiles it, any other threads asking for it wait on the future
+                entry = new Entry();
+                entries.put(expression, entry);
+                compile = true;
+                missCount++;
+            } else {
+                hitCount++;
+            }
+        }
+        
+        if (compile) {
+            RegularExpression re;
+            long weight;
+            try {
+                re = builder.toRegularExpression(expression);
+                weight = weigher.applyAsLong(re);
+            } catch (Throwable t) {
+                // don't cache the failure, the next call will try again,
+                // and errors have to reach the waiting threads too or they'd wait forever
+                synchronized (this) {
+                    entries.remove(expression, entry);
+                }
+                entry.future.completeExceptionally(t);
+                throw t;
+            }
+            
+            synchronized (this) {
+                entry.weight = weight;
+                entry.compiled = true;
+                
+                // the entry might have been removed by clear() while it was compiling
+                if (entries.get(expression) == entry) {
+                    totalWeight += weight;
+                    evict();
+                }
+            }
+            entry.future.complete(re);
+            return re;
+        }
+        
+        try {
+            return entry.future.join();
+        } catch (CompletionException e) {
+            // rethrow the exception or error from the thread that compiled it
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Evicts the least recently used compiled expressions until the total weight is under the maximum.
+     */
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (totalWeight > maximumWeight && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest.compiled) {
+                iterator.remove();
+                totalWeight -= eldest.weight;
+                evictionCount++;
+            }
+        }
+    }
+
+    /**
+     * Removes every expression from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        totalWeight = 0;
+    }
+
+    /**
+     * 
+     * @return the number of expressions in the cache, including ones that are still compiling
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 
+     * @return the total weight of the compiled expressions in the cache
+     */
+    public synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * 
+     * @return the number of times get found the expression in the cache
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * 
+     * @return the number of times get had to compile the expression
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 
+     * @return the number of expressions evicted to stay under the maximum weight
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+}
@@ -0,0 +1,81 @@
+package casson.regexp;
+
+import java.util.Arrays;
+
+/**
+ * How often each state and transition of a RegularExpression's deterministic FSM was used
+ * while the expression was being profiled.
+ * 
+ * States are numbered from 0 to getStateCount() - 1, the initial state isn't necessarily 0.
+ *
+ * @author Chris Casson
+ */
+public final class RegularExpressionProfile {
+
+    private final DFATable table;
+    private final long[] stateVisits;
+    private final long[] transitionVisits;
+
+    RegularExpressionProfile(DFATable table, long[] stateVisits, long[] transitionVisits) {
+        this.table = table;
+        this.stateVisits = stateVisits;
+        this.transitionVisits = transitionVisits;
+    }
+
+    /**
+     * 
+     * @return the number of states in the deterministic FSM
+     */
+    public int getStateCount() {
+        return table.stateCount;
+    }
+
+    /**
+     * 
+     * @return the initial state
+     */
+    public int getInitialState() {
+        return table.initialState;
+    }
+
+    /**
+     * 
+     * @param state
+     * @return the number of characters read in the state
+     */
+    public long getStateVisits(int state) {
+        return stateVisits[state];
+    }
+
+    /**
+     * 
+     * @param state
+     * @param character
+     * @return the number of times character was read in the state
+     */
+    public long getTransitionVisits(int state, char character) {
+        return transitionVisits[state * table.classCount + table.classOf(character)];
+    }
+
+    /**
+     * 
+     * @return the total number of characters read
+     */
+    public long getTotalVisits() {
+        long total = 0;
+        for (long visits : stateVisits) {
+            total += visits;
+        }
+        return total;
+    }
+
+    /**
+     * 
+     * @return the states that were visited, most visited first
+     */
+    public int[] getHotStates() {
+        return Arrays.stream(DFAProfile.byVisits(stateVisits))
+                .filter(s -> stateVisits[s] > 0)
+                .toArray();
+    }
+}
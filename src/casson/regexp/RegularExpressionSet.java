@@ -0,0 +1,110 @@
+package casson.regexp;
+
+import casson.regexp.RegularExpression.SyntaxTree;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matches input against many regular expressions at once.
+ * 
+ * The non-deterministic FSMs of the expressions are combined and determinized together,
+ * with each accepting state tagged with the expressions it accepts.
+ * One pass over the input finds every expression that matches,
+ * so the cost doesn't grow with the number of expressions.
+ *
+ * @author Chris Casson
+ */
+public class RegularExpressionSet {
+
+    private final List<String> expressions;
+    private final DFATable table;
+
+    /**
+     * 
+     * @param expressions the expressions in the set, each one's index is its id
+     */
+    public RegularExpressionSet(String... expressions) {
+        this(Arrays.asList(expressions));
+    }
+
+    /**
+     * 
+     * @param expressions the expressions in the set, each one's index is its id
+     */
+    public RegularExpressionSet(List<String> expressions) {
+        if (expressions.isEmpty()) {
+            throw new IllegalArgumentException("A RegularExpressionSet needs at least one expression.");
+        }
+        this.expressions = Collections.unmodifiableList(new ArrayList<>(expressions));
+        
+        // parse every expression, their classes are split into one alphabet so the tables agree on the representatives
+        List<SyntaxTree> trees = new ArrayList<>();
+        for (String expression : this.expressions) {
+            trees.add(RegularExpression.generateSyntaxTree(expression));
+        }
+        Alphabet alphabet = Alphabet.of(trees);
+        
+        // generate the non-deterministic table for each expression without determinizing it on its own
+        List<NFATable> tables = new ArrayList<>();
+        for (SyntaxTree tree : trees) {
+            tables.add(new NFATable(RegularExpression.generateNonDeterministicFSM(tree, alphabet), alphabet));
+        }
+        
+        // determinize the union of all of them once
+        table = new DFATable(new DeterministicFSM(NFATable.union(tables)).minimize(), alphabet);
+    }
+
+    /**
+     * 
+     * @return the number of expressions in the set
+     */
+    public int size() {
+        return expressions.size();
+    }
+
+    /**
+     * 
+     * @param id
+     * @return the expression with the given id
+     */
+    public String getExpression(int id) {
+        return expressions.get(id);
+    }
+
+    /**
+     * 
+     * @param input
+     * @return the ids of the expressions that match the input
+     */
+    public BitSet matches(CharSequence input) {
+        BitSet result = new BitSet(expressions.size());
+        matches(input, result);
+        return result;
+    }
+
+    /**
+     * Finds the expressions that match the input without allocating a new BitSet.
+     * 
+     * @param input
+     * @param result cleared, then set to the ids of the expressions that match the input
+     */
+    public void matches(CharSequence input, BitSet result) {
+        result.clear();
+        int state = table.run(table.initialState, input, 0, input.length());
+        if (table.isAccepting(state)) {
+            result.or(table.acceptedPatterns[state]);
+        }
+    }
+
+    /**
+     * 
+     * @param input
+     * @return true if any of the expressions match the input, otherwise false
+     */
+    public boolean matchesAny(CharSequence input) {
+        return table.accepts(input);
+    }
+}
@@ -0,0 +1,143 @@
+package casson.regexp;
+
+/**
+ * What it cost to compile a RegularExpression: the size of each automaton that was built and the time each phase took.
+ * 
+ * Counts and times for phases the expression's options skipped are 0.
+ * The stats are filled in while the expression is compiled and don't change after that.
+ *
+ * @author Chris Casson
+ */
+public final class RegularExpressionStats {
+
+    private final String expression;
+    
+    int syntaxTreeNodeCount;
+    int nonDeterministicStateCount;
+    int nonDeterministicTransitionCount;
+    int unminimizedStateCount;
+    int stateCount;
+    long tableBytes;
+    
+    long syntaxTreeNanos;
+    long nonDeterministicNanos;
+    long deterministicNanos;
+    long minimizeNanos;
+
+    RegularExpressionStats(String expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * 
+     * @return the expression the stats are for
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * 
+     * @return the number of nodes in the syntax tree
+     */
+    public int getSyntaxTreeNodeCount() {
+        return syntaxTreeNodeCount;
+    }
+
+    /**
+     * 
+     * @return the number of states in the non-deterministic FSM,
+     * or the number of positions plus one for the start when the deterministic FSM was built from the followpos sets
+     */
+    public int getNonDeterministicStateCount() {
+        return nonDeterministicStateCount;
+    }
+
+    /**
+     * 
+     * @return the number of transitions in the non-deterministic FSM,
+     * or the number of followpos sets linked to positions when the deterministic FSM was built from them
+     */
+    public int getNonDeterministicTransitionCount() {
+        return nonDeterministicTransitionCount;
+    }
+
+    /**
+     * 
+     * @return the number of states in the deterministic FSM before it was minimized
+     */
+    public int getUnminimizedStateCount() {
+        return unminimizedStateCount;
+    }
+
+    /**
+     * 
+     * @return the number of states in the deterministic FSM used for matching
+     */
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    /**
+     * 
+     * @return the number of bytes in the tables used for matching
+     */
+    public long getTableBytes() {
+        return tableBytes;
+    }
+
+    /**
+     * 
+     * @return the nanoseconds spent parsing the expression into the syntax tree
+     */
+    public long getSyntaxTreeNanos() {
+        return syntaxTreeNanos;
+    }
+
+    /**
+     * 
+     * @return the nanoseconds spent generating the non-deterministic FSM or the followpos sets from the syntax tree
+     */
+    public long getNonDeterministicNanos() {
+        return nonDeterministicNanos;
+    }
+
+    /**
+     * 
+     * @return the nanoseconds spent generating the deterministic FSM with the subset construction
+     */
+    public long getDeterministicNanos() {
+        return deterministicNanos;
+    }
+
+    /**
+     * 
+     * @return the nanoseconds spent minimizing the deterministic FSM
+     */
+    public long getMinimizeNanos() {
+        return minimizeNanos;
+    }
+
+    /**
+     * 
+     * @return the total nanoseconds spent compiling the expression
+     */
+    public long getTotalNanos() {
+        return syntaxTreeNanos + nonDeterministicNanos + deterministicNanos + minimizeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "RegularExpressionStats{expression=" + expression
+                + ", syntaxTreeNodes=" + syntaxTreeNodeCount
+                + ", nonDeterministicStates=" + nonDeterministicStateCount
+                + ", nonDeterministicTransitions=" + nonDeterministicTransitionCount
+                + ", unminimizedStates=" + unminimizedStateCount
+                + ", states=" + stateCount
+                + ", tableBytes=" + tableBytes
+                + ", syntaxTreeNanos=" + syntaxTreeNanos
+                + ", nonDeterministicNanos=" + nonDeterministicNanos
+                + ", deterministicNanos=" + deterministicNanos
+                + ", minimizeNanos=" + minimizeNanos + "}";
+    }
+}
@@ -0,0 +1,154 @@
+package casson.regexp;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Matches UTF-8 bytes without decoding them, using a deterministic FSM whose transitions are on bytes.
+ * 
+ * The table is built from the expression's non-deterministic table with every character replaced by its UTF-8 bytes,
+ * so it's the same kind of DFATable the expression uses for characters, with bytes 0 to 255 as its characters.
+ * Every match starts on a character boundary, since continuation bytes never start a character's bytes.
+ * The tables for find and findAll are only built the first time they're needed.
+ * 
+ * Offsets in the matches are byte offsets.
+ *
+ * @author Chris Casson
+ */
+final class Utf8Matcher {
+
+    private final NFATable nfa;
+    private final DFATable table;
+    private volatile DFASearcher searcher;
+
+    /**
+     * 
+     * @param nonDeterministicTable the expression's table over characters
+     */
+    Utf8Matcher(NFATable nonDeterministicTable) {
+        nfa = nonDeterministicTable.toUtf8();
+        table = new DFATable(new DeterministicFSM(nfa).minimize());
+    }
+
+    /**
+     * 
+     * @param input
+     * @param from index of the first byte
+     * @param to index after the last byte
+     * @return true if the bytes match the expression, otherwise false
+     */
+    boolean accepts(byte[] input, int from, int to) {
+        // local copies so the loop only touches registers and the arrays
+        final int[] transitions = table.transitions;
+        final char[] map = table.classMap;
+        final int columns = table.classCount;
+
+        int state = table.initialState;
+        for (int i = from; i < to && state != DFATable.DEAD_STATE; i++) {
+            int b = input[i] & 0xFF;
+            state = transitions[state * columns + (b < map.length ? map[b] : 0)];
+        }
+        return table.isAccepting(state);
+    }
+
+    /**
+     * Matches the bytes between the buffer's position and limit, the position isn't moved.
+     * 
+     * @param input
+     * @return true if the bytes match the expression, otherwise false
+     */
+    boolean accepts(ByteBuffer input) {
+        if (input.hasArray()) {
+            int offset = input.arrayOffset() + input.position();
+            return accepts(input.array(), offset, offset + input.remaining());
+        }
+        
+        // direct and mapped buffers are read with absolute gets
+        final int[] transitions = table.transitions;
+        final char[] map = table.classMap;
+        final int columns = table.classCount;
+
+        int state = table.initialState;
+        for (int i = input.position(); i < input.limit() && state != DFATable.DEAD_STATE; i++) {
+            int b = input.get(i) & 0xFF;
+            state = transitions[state * columns + (b < map.length ? map[b] : 0)];
+        }
+        return table.isAccepting(state);
+    }
+
+    /**
+     * 
+     * @param input the bytes between the buffer's position and limit
+     * @return the leftmost-longest match, or null if there isn't one
+     */
+    Match find(ByteBuffer input) {
+        return getSearcher().find(new ByteSequence(input), 0);
+    }
+
+    /**
+     * 
+     * @param input the bytes between the buffer's position and limit
+     * @return the leftmost-longest matches that don't overlap, in order
+     */
+    List<Match> findAll(ByteBuffer input) {
+        return getSearcher().findAll(new ByteSequence(input));
+    }
+
+    private DFASearcher getSearcher() {
+        DFASearcher result = searcher;
+        if (result == null) {
+            synchronized (this) {
+                result = searcher;
+                if (result == null) {
+                    result = new DFASearcher(table, nfa);
+                    searcher = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A view of the bytes between a buffer's position and limit as characters from 0 to 255,
+     * so the searcher can read them without decoding or copying.
+     */
+    private static final class ByteSequence implements CharSequence {
+
+        private final ByteBuffer buffer;
+        private final int start;
+        private final int length;
+
+        private ByteSequence(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.start = buffer.position();
+            this.length = buffer.remaining();
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(start + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(start + to);
+            slice.position(start + from);
+            return new ByteSequence(slice);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder characters = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                characters.append(charAt(i));
+            }
+            return characters.toString();
+        }
+    }
+}
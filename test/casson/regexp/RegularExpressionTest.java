@@ -1,10 +1,34 @@
 package casson.regexp;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
 public class RegularExpressionTest {
 
+    // expressions used to compare the different ways of compiling and matching
+    static final String[] EXPRESSIONS = {
+        "a*b*", "a|bc", "a*b*|c*d*", "(a|d)(b|c)", "(a|d)fg(b|c)", "a(b*|c)",
+        "(a|a)*", "(ab|ac)*", "a(bc)*bcx", "(a|b)*abb", "((a|b)(c|d))*", "a*a*a*", "(a*b*)*c"
+    };
+
     public RegularExpressionTest() {
     }
 
@@ -52,6 +76,962 @@ public class RegularExpressionTest {
         assertFalse(re.accepts("abccbcbcbccbbcbca"));
     }
 
+    @Test
+    public void testLongInput() {
+        RegularExpression re = new RegularExpression("a(bc)*d");
+        
+        StringBuilder input = new StringBuilder("a");
+        for (int i = 0; i < 1000000; i++) {
+            input.append("bc");
+        }
+        assertFalse(re.accepts(input));
+        
+        input.append('d');
+        assertTrue(re.accepts(input));
+        assertTrue(re.accepts(input.toString()));
+        
+        input.append('d');
+        assertFalse(re.accepts(input));
+    }
+
+    @Test
+    public void testNonDeterministic() {
+        RegularExpressionBuilder builder = new RegularExpressionBuilder().determinize(false);
+        
+        RegularExpression re = builder.toRegularExpression("a*b*|c*d*");
+        assertTrue(re.accepts("aaabbb"));
+        assertTrue(re.accepts("cccddd"));
+        assertTrue(re.accepts(""));
+        assertFalse(re.accepts("abcd"));
+        
+        re = builder.toRegularExpression("(a|d)fg(b|c)");
+        assertTrue(re.accepts("afgb"));
+        assertTrue(re.accepts("dfgc"));
+        assertFalse(re.accepts("afgbc"));
+        
+        // every a can be matched by either side of the union, so trying each path is exponential
+        re = builder.toRegularExpression("(a|a)*");
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            input.append('a');
+        }
+        assertTrue(re.accepts(input));
+        
+        input.append('b');
+        assertFalse(re.accepts(input));
+    }
+
+    @Test
+    public void testMinimize() {
+        RegularExpressionBuilder unminimized = new RegularExpressionBuilder().minimize(false);
+        for (String expression : EXPRESSIONS) {
+            RegularExpression re = new RegularExpression(expression);
+            RegularExpression expected = unminimized.toRegularExpression(expression);
+            assertTrue(re.getStateCount() <= re.getUnminimizedStateCount());
+            assertSameLanguage(expected, re, "abcdx", 6);
+        }
+        
+        // the states after a and after b are the same, as are the states after c and after d
+        RegularExpression re = new RegularExpression("((a|b)(c|d))*");
+        assertEquals(2, re.getStateCount());
+        assertTrue(re.getUnminimizedStateCount() > 2);
+        
+        // both sides of the union are the same, so they only need one state
+        re = new RegularExpression("(a|a)*");
+        assertEquals(1, re.getStateCount());
+    }
+
+    @Test
+    public void testSubsetConstruction() {
+        // the same subsets are reached in different orders and with duplicate states
+        RegularExpression re = new RegularExpressionBuilder().minimize(false).toRegularExpression("(a|a)*");
+        assertEquals(2, re.getUnminimizedStateCount());
+        assertTrue(re.accepts("aaaa"));
+        assertFalse(re.accepts("aaab"));
+        
+        // a wide union of closures that share characters
+        StringBuilder expression = new StringBuilder("(a*b*");
+        for (int i = 0; i < 100; i++) {
+            expression.append("|a*b*");
+        }
+        expression.append(")*c");
+        re = new RegularExpression(expression.toString());
+        assertTrue(re.accepts("abababc"));
+        assertFalse(re.accepts("ababab"));
+    }
+
+    /**
+     * Asserts that both expressions give the same result for every string over the alphabet
+     * up to the given length.
+     */
+    static void assertSameLanguage(RegularExpression expected, RegularExpression actual, String alphabet, int maxLength) {
+        char[] input = new char[maxLength];
+        int[] digits = new int[maxLength];
+        for (int length = 0; length <= maxLength; length++) {
+            Arrays.fill(digits, 0);
+            while (true) {
+                for (int i = 0; i < length; i++) {
+                    input[i] = alphabet.charAt(digits[i]);
+                }
+                String string = new String(input, 0, length);
+                assertEquals(string, expected.accepts(string), actual.accepts(string));
+                
+                // advance to the next string of this length
+                int position = 0;
+                while (position < length && ++digits[position] == alphabet.length()) {
+                    digits[position++] = 0;
+                }
+                if (position == length) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalMatcher() {
+        for (RegularExpression re : new RegularExpression[] {
+                new RegularExpression("a(bc)*d"),
+                new RegularExpressionBuilder().determinize(false).toRegularExpression("a(bc)*d")}) {
+            IncrementalMatcher matcher = re.matcher();
+            assertFalse(matcher.accepts());
+            assertFalse(matcher.isDead());
+            
+            matcher.feed("ab");
+            matcher.feed(new char[] {'x', 'c', 'b', 'x'}, 1, 2);
+            matcher.feed(java.nio.CharBuffer.wrap("cbcd"));
+            assertTrue(matcher.accepts());
+            assertFalse(matcher.isDead());
+            
+            // a direct buffer doesn't have an array
+            java.nio.CharBuffer direct = java.nio.ByteBuffer.allocateDirect(4).asCharBuffer();
+            direct.put('d').flip();
+            matcher.feed(direct);
+            assertEquals(direct.limit(), direct.position());
+            assertFalse(matcher.accepts());
+            assertTrue(matcher.isDead());
+            
+            matcher.reset().feed("ad");
+            assertTrue(matcher.accepts());
+        }
+    }
+
+    @Test
+    public void testFind() {
+        RegularExpression re = new RegularExpression("a(bc)*d");
+        assertEquals(new Match(2, 8), re.find("xxabcbcdxxad"));
+        assertEquals(new Match(10, 12), re.find("xxabcbcdxxad", 3));
+        assertNull(re.find("xxabcbcxx"));
+        assertEquals(Arrays.asList(new Match(2, 8), new Match(10, 12)), re.findAll("xxabcbcdxxad"));
+        
+        // the leftmost match wins even though a later one ends first
+        re = new RegularExpression("(abcd)|c");
+        assertEquals(new Match(0, 4), re.find("abcd"));
+        assertEquals(Arrays.asList(new Match(0, 4), new Match(6, 7)), re.findAll("abcdabcx"));
+        
+        // the longest match from the leftmost start wins
+        re = new RegularExpression("a|ab|abc");
+        assertEquals(Arrays.asList(new Match(0, 3), new Match(3, 5), new Match(6, 7)), re.findAll("abcabxa"));
+        
+        // empty matches move forward a character at a time
+        re = new RegularExpression("a*");
+        assertEquals(Arrays.asList(new Match(0, 0), new Match(1, 3), new Match(3, 3), new Match(4, 4)), re.findAll("baab"));
+        
+        re = new RegularExpressionBuilder().determinize(false).toRegularExpression("(a|b)*abb");
+        assertEquals(Arrays.asList(new Match(1, 9), new Match(10, 13)), re.findAll("cababbabbcabb"));
+    }
+
+    @Test
+    public void testFindAllAgainstAccepts() {
+        // every match findAll returns must be accepted, and no longer match can start at the same place
+        String input = "abcbcdaabbcdcdxbcabbaccaddbcxaabbx";
+        for (String expression : EXPRESSIONS) {
+            RegularExpression re = new RegularExpression(expression);
+            int previousEnd = 0;
+            for (Match match : re.findAll(input)) {
+                assertTrue(match.getStart() >= previousEnd);
+                assertTrue(re.accepts(input.subSequence(match.getStart(), match.getEnd())));
+                for (int end = match.getEnd() + 1; end <= input.length(); end++) {
+                    assertFalse(re.accepts(input.subSequence(match.getStart(), end)));
+                }
+                
+                // nothing between the previous match and this one starts a match
+                for (int start = previousEnd; start < match.getStart(); start++) {
+                    for (int end = start; end <= input.length(); end++) {
+                        assertFalse(expression + " " + start + " " + end, re.accepts(input.subSequence(start, end)));
+                    }
+                }
+                previousEnd = Math.max(match.getEnd(), previousEnd + (match.getEnd() == match.getStart() ? 1 : 0));
+            }
+        }
+    }
+
+    @Test
+    public void testFindIterated() {
+        // calling find from the end of each match gives the same matches as findAll, each call only reads
+        // as far as its match so the loop doesn't read the rest of the input again every time
+        Random random = new Random(6);
+        char[] characters = new char[200000];
+        for (int i = 0; i < characters.length; i++) {
+            characters[i] = "abcdx".charAt(random.nextInt(5));
+        }
+        String input = new String(characters);
+        
+        List<String> expressions = new ArrayList<>(Arrays.asList(EXPRESSIONS));
+        expressions.add("(abcd)|c");
+        expressions.add("(a|b)*(c|ddx)");
+        for (String expression : expressions) {
+            RegularExpression re = new RegularExpression(expression);
+            List<Match> matches = new ArrayList<>();
+            int from = 0;
+            for (Match match = re.find(input, from); match != null; match = from > input.length() ? null : re.find(input, from)) {
+                matches.add(match);
+                from = match.getEnd() == match.getStart() ? match.getEnd() + 1 : match.getEnd();
+            }
+            assertEquals(expression, re.findAll(input), matches);
+        }
+    }
+
+    @Test
+    public void testCharacterClasses() {
+        // (a|b)*c - a and b always go to the same state so they share a class
+        NonDeterministicFSM nfa = new NonDeterministicFSM('a')
+                .union(new NonDeterministicFSM('b'))
+                .closure()
+                .concat(new NonDeterministicFSM('c'));
+        DFATable table = new DFATable(new DeterministicFSM(new NFATable(nfa)).minimize());
+        assertEquals(3, table.classCount);
+        assertEquals(table.classOf('a'), table.classOf('b'));
+        assertTrue(table.classOf('a') != table.classOf('c'));
+        assertEquals(0, table.classOf('x'));
+        assertEquals(0, table.classOf('\u20ac'));
+        assertTrue(table.accepts("abbac"));
+        assertFalse(table.accepts("ab\u20acc"));
+    }
+
+    @Test
+    public void testRegularExpressionSet() {
+        RegularExpressionSet set = new RegularExpressionSet(EXPRESSIONS);
+        assertEquals(EXPRESSIONS.length, set.size());
+        
+        // the set has to agree with each expression on its own
+        RegularExpression[] expressions = new RegularExpression[EXPRESSIONS.length];
+        for (int i = 0; i < EXPRESSIONS.length; i++) {
+            expressions[i] = new RegularExpression(EXPRESSIONS[i]);
+        }
+        BitSet result = new BitSet();
+        for (String input : new String[] {"", "a", "ab", "abc", "bc", "aab", "abb", "abbb", "abcbcx", "acd", "ac", "aaa", "abac", "bd", "ababc", "dfgc"}) {
+            set.matches(input, result);
+            for (int i = 0; i < EXPRESSIONS.length; i++) {
+                assertEquals(EXPRESSIONS[i] + " " + input, expressions[i].accepts(input), result.get(i));
+            }
+            assertEquals(!result.isEmpty(), set.matchesAny(input));
+        }
+        
+        set = new RegularExpressionSet("ab*", "a*b", "c");
+        assertEquals(bits(0, 1), set.matches("ab"));
+        assertEquals(bits(1), set.matches("aab"));
+        assertEquals(bits(0), set.matches("abb"));
+        assertEquals(bits(), set.matches("abc"));
+    }
+
+    private static BitSet bits(int... ids) {
+        BitSet bits = new BitSet();
+        for (int id : ids) {
+            bits.set(id);
+        }
+        return bits;
+    }
+
+    @Test
+    public void testLazy() {
+        RegularExpressionBuilder lazy = new RegularExpressionBuilder().lazy(true);
+        for (String expression : EXPRESSIONS) {
+            assertSameLanguage(new RegularExpression(expression), lazy.toRegularExpression(expression), "abcdx", 5);
+        }
+        
+        // (a|b)*a(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)(a|b) needs 2^8 deterministic states
+        String expression = "(a|b)*a(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)";
+        RegularExpression full = new RegularExpression(expression);
+        assertEquals(256, full.getStateCount());
+        
+        // a budget that only fits a few states keeps clearing the cache, then falls back to simulation
+        RegularExpression small = new RegularExpressionBuilder().lazy(true).lazyCacheBytes(2000).toRegularExpression(expression);
+        Random random = new Random(42);
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            input.append(random.nextBoolean() ? 'a' : 'b');
+            if (i % 97 == 0) {
+                assertEquals(full.accepts(input), small.accepts(input));
+            }
+        }
+        
+        LazyDFA lazyDFA = new LazyDFA(small.getNonDeterministicTable(), 2000);
+        assertEquals(full.accepts(input), lazyDFA.accepts(input));
+        assertTrue(lazyDFA.getClearCount() > 0);
+        assertTrue(lazyDFA.getStateCount() < 256);
+    }
+
+    @Test
+    public void testCompileCache() throws Exception {
+        RegularExpression re = RegularExpression.compile("a(bc)*d");
+        assertSame(re, RegularExpression.compile("a(bc)*d"));
+        assertTrue(re.accepts("abcd"));
+        
+        // the least recently used expression is evicted
+        RegularExpressionCache cache = new RegularExpressionCache(2);
+        RegularExpression a = cache.get("a*");
+        cache.get("b*");
+        assertSame(a, cache.get("a*"));
+        cache.get("c*");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertSame(a, cache.get("a*"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        
+        // invalid expressions aren't cached
+        try {
+            cache.get("*a");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(2, cache.size());
+        }
+        
+        // threads asking for the same expression at the same time get the same object
+        final RegularExpressionCache concurrent = new RegularExpressionCache(10);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<RegularExpression>> futures = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            futures.add(executor.submit(() -> concurrent.get("(a|b)*a(a|b)(a|b)(a|b)(a|b)")));
+        }
+        RegularExpression first = futures.get(0).get();
+        for (Future<RegularExpression> future : futures) {
+            assertSame(first, future.get());
+        }
+        executor.shutdown();
+        assertEquals(1, concurrent.getMissCount());
+        assertEquals(31, concurrent.getHitCount());
+        
+        // an error while compiling reaches the thread waiting on the same expression and isn't cached,
+        // the weigher waits for the second get to find the entry before it throws
+        final AtomicBoolean thrown = new AtomicBoolean();
+        final RegularExpressionCache[] failing = new RegularExpressionCache[1];
+        failing[0] = new RegularExpressionCache(10, compiled -> {
+            if (!thrown.get()) {
+                while (failing[0].getHitCount() == 0) {
+                    Thread.yield();
+                }
+                thrown.set(true);
+                throw new StackOverflowError("weigher");
+            }
+            return 1;
+        }, new RegularExpressionBuilder());
+        ExecutorService compiler = Executors.newSingleThreadExecutor();
+        Future<RegularExpression> compiling = compiler.submit(() -> failing[0].get("a*b"));
+        while (failing[0].size() == 0) {
+            Thread.yield();
+        }
+        try {
+            failing[0].get("a*b");
+            fail();
+        } catch (StackOverflowError e) {
+            assertEquals("weigher", e.getMessage());
+        }
+        try {
+            compiling.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackOverflowError);
+        }
+        compiler.shutdown();
+        assertEquals(0, failing[0].size());
+        assertTrue(failing[0].get("a*b").accepts("aab"));
+    }
+
+    @Test
+    public void testCodeGeneration() {
+        RegularExpressionBuilder builder = new RegularExpressionBuilder().codeGenerationThreshold(3);
+        for (String expression : EXPRESSIONS) {
+            RegularExpression re = builder.toRegularExpression(expression);
+            re.accepts("a");
+            re.accepts("b");
+            assertFalse(re.isGenerated());
+            re.accepts("c");
+            re.awaitCodeGeneration();
+            assertTrue(expression, re.isGenerated());
+            assertSameLanguage(new RegularExpression(expression), re, "abcdx", 5);
+        }
+        
+        // characters outside the expression and long runs of characters
+        RegularExpression re = builder.toRegularExpression("(a|b|c|d|e|f)*x");
+        for (int i = 0; i < 3; i++) {
+            re.accepts("");
+        }
+        re.awaitCodeGeneration();
+        assertTrue(re.isGenerated());
+        assertTrue(re.accepts("abcdefx"));
+        assertFalse(re.accepts("abcdefgx"));
+        assertFalse(re.accepts("\u20acx"));
+        
+        // a table too big for a class stops counting once the generation has been tried
+        re = builder.toRegularExpression("(a|b)*a(a|b){8}");
+        for (int i = 0; i < 3; i++) {
+            re.accepts("");
+        }
+        re.awaitCodeGeneration();
+        assertFalse(re.isGenerated());
+        re.accepts("");
+        assertEquals(3, re.getAcceptsCount());
+    }
+
+    @Test
+    public void testAcceptsParallel() {
+        RegularExpression re = new RegularExpression("(a|b)*abb(c|d)*");
+        
+        StringBuilder input = new StringBuilder();
+        Random random = new Random(7);
+        for (int i = 0; i < 1000000; i++) {
+            input.append(random.nextBoolean() ? 'a' : 'b');
+        }
+        input.append("abb");
+        for (int i = 0; i < 1000000; i++) {
+            input.append(random.nextBoolean() ? 'c' : 'd');
+        }
+        assertTrue(re.acceptsParallel(input));
+        assertEquals(re.accepts(input), re.acceptsParallel(input, new ForkJoinPool(3)));
+        
+        // a character in the middle that kills the match
+        input.setCharAt(1500000, 'a');
+        assertFalse(re.acceptsParallel(input));
+        
+        // the mapping of two halves composed is the mapping of the whole
+        DFATable table = new DFATable(new DeterministicFSM(re.getNonDeterministicTable()).minimize());
+        int[] whole = ParallelMatcher.mapping(table, input, 999000, 1002000);
+        int[] composed = ParallelMatcher.compose(
+                ParallelMatcher.mapping(table, input, 999000, 1000500),
+                ParallelMatcher.mapping(table, input, 1000500, 1002000));
+        assertArrayEquals(whole, composed);
+        for (int s = 0; s < table.stateCount; s++) {
+            assertEquals(table.run(s, input, 999000, 1002000), whole[s]);
+        }
+    }
+
+    @Test
+    public void testAcceptsAll() {
+        Random random = new Random(13);
+        CharSequence[] inputs = new CharSequence[10003];
+        for (int i = 0; i < inputs.length; i++) {
+            char[] input = new char[random.nextInt(12)];
+            for (int k = 0; k < input.length; k++) {
+                input[k] = "abcdx".charAt(random.nextInt(5));
+            }
+            inputs[i] = new String(input);
+        }
+        
+        for (String expression : EXPRESSIONS) {
+            RegularExpression deterministic = new RegularExpression(expression);
+            RegularExpression nonDeterministic = new RegularExpressionBuilder().determinize(false).toRegularExpression(expression);
+            
+            boolean[] parallel = new boolean[inputs.length];
+            boolean[] interleaved = new boolean[inputs.length];
+            boolean[] simulated = new boolean[inputs.length];
+            deterministic.acceptsAll(inputs, parallel);
+            deterministic.acceptsAllInterleaved(inputs, interleaved);
+            nonDeterministic.acceptsAll(inputs, simulated);
+            boolean[] list = deterministic.acceptsAll(Arrays.asList(inputs));
+            
+            for (int i = 0; i < inputs.length; i++) {
+                boolean expected = deterministic.accepts(inputs[i]);
+                assertEquals(expression + " " + inputs[i], expected, parallel[i]);
+                assertEquals(expression + " " + inputs[i], expected, interleaved[i]);
+                assertEquals(expression + " " + inputs[i], expected, simulated[i]);
+                assertEquals(expression + " " + inputs[i], expected, list[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        Path file = Files.createTempFile("regexp", ".dfa");
+        try {
+            for (String expression : EXPRESSIONS) {
+                RegularExpression re = new RegularExpression(expression);
+                re.save(file);
+                RegularExpression loaded = RegularExpression.load(file);
+                assertEquals(re.getStateCount(), loaded.getStateCount());
+                assertSameLanguage(re, loaded, "abcdx", 6);
+                assertEquals(re.findAll("xxabcbcbcxbcxx"), loaded.findAll("xxabcbcbcxbcxx"));
+                
+                // expressions that weren't determinized are determinized when they're saved
+                new RegularExpressionBuilder().determinize(false).toRegularExpression(expression).save(file);
+                assertSameLanguage(re, RegularExpression.load(file), "abcdx", 6);
+            }
+            
+            // a file that wasn't written by save
+            Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28});
+            try {
+                RegularExpression.load(file);
+                fail("loaded a file that wasn't saved");
+            } catch (IOException e) {
+                // expected
+            }
+            
+            // files with a transition to a state that doesn't exist or a character in a class that doesn't exist,
+            // the first transition is right after the 7 int header and the class map right after the transitions
+            RegularExpression re = new RegularExpression("a(bc)*d");
+            re.save(file);
+            byte[] saved = Files.readAllBytes(file);
+            ByteBuffer corrupt = ByteBuffer.wrap(saved.clone());
+            corrupt.putInt(28, re.getStateCount());
+            Files.write(file, corrupt.array());
+            try {
+                RegularExpression.load(file);
+                fail("loaded a transition to a state that doesn't exist");
+            } catch (IOException e) {
+                // expected
+            }
+            corrupt = ByteBuffer.wrap(saved.clone());
+            corrupt.putChar(28 + corrupt.getInt(8) * corrupt.getInt(16) * 4 + 'b' * 2, (char) corrupt.getInt(16));
+            Files.write(file, corrupt.array());
+            try {
+                RegularExpression.load(file);
+                fail("loaded a character in a class that doesn't exist");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testBitParallel() {
+        RegularExpressionBuilder bitParallel = new RegularExpressionBuilder().determinize(false);
+        RegularExpressionBuilder simulated = new RegularExpressionBuilder().determinize(false).bitParallel(false);
+        for (String expression : EXPRESSIONS) {
+            assertSameLanguage(new RegularExpression(expression), bitParallel.toRegularExpression(expression), "abcdx", 6);
+        }
+        
+        // 64 positions is the most that fits, more than that is simulated
+        StringBuilder expression = new StringBuilder("(a|b)*");
+        while (expression.length() < 6 + 62) {
+            expression.append("a");
+        }
+        RegularExpression largest = bitParallel.toRegularExpression(expression.toString());
+        assertSameLanguage(simulated.toRegularExpression(expression.toString()), largest, "ab", 4);
+        
+        StringBuilder input = new StringBuilder("babab");
+        for (int i = 0; i < 62; i++) {
+            input.append('a');
+        }
+        assertTrue(largest.accepts(input));
+        input.append('b');
+        assertFalse(largest.accepts(input));
+        
+        expression.append('a');
+        assertSameLanguage(simulated.toRegularExpression(expression.toString()),
+                bitParallel.toRegularExpression(expression.toString()), "ab", 4);
+        
+        // a small expression whose deterministic fsm would be too big is matched bit-parallel even when it's determinized
+        RegularExpression determinized = new RegularExpression("(a|b)*a(a|b){14}");
+        assertNull(determinized.getTable());
+        assertSameLanguage(simulated.toRegularExpression("(a|b)*a(a|b){14}"), determinized, "ab", 16);
+        assertNotNull(new RegularExpression("(a|b)*a(a|b){12}").getTable());
+        assertNotNull(new RegularExpressionBuilder().bitParallel(false).toRegularExpression("(a|b)*a(a|b){14}").getTable());
+    }
+
+    @Test
+    public void testLiteralPrefilter() {
+        LiteralPrefilter prefilter = new RegularExpression("a(bc)*bcx").getPrefilter();
+        assertEquals("a", prefilter.prefix);
+        assertEquals("bcx", prefilter.required);
+        
+        prefilter = new RegularExpression("(abcd)|(abxd)").getPrefilter();
+        assertEquals("ab", prefilter.prefix);
+        assertEquals("ab", prefilter.required);
+        
+        prefilter = new RegularExpression("(a|b)*abb").getPrefilter();
+        assertEquals("", prefilter.prefix);
+        assertEquals("abb", prefilter.required);
+        
+        assertNull(new RegularExpression("(a|b)*").getPrefilter());
+        assertNull(new RegularExpression("(ab|cd)*").getPrefilter());
+        
+        // every mode gives the same answers with the prefilter
+        for (String expression : EXPRESSIONS) {
+            RegularExpression re = new RegularExpression(expression);
+            assertSameLanguage(re, new RegularExpressionBuilder().determinize(false).toRegularExpression(expression), "abcdx", 6);
+            assertSameLanguage(re, new RegularExpressionBuilder().lazy(true).toRegularExpression(expression), "abcdx", 6);
+        }
+        
+        RegularExpression re = new RegularExpression("a(bc)*bcx");
+        assertEquals(new Match(7, 13), re.find("xxbcxxxabcbcxbc"));
+        assertEquals(new Match(7, 13), re.find(new StringBuilder("xxbcxxxabcbcxbc"), 3));
+        assertNull(re.find("abcbcbcbcbcbc"));
+        assertTrue(re.findAll("abcbcbcbcbcbc").isEmpty());
+        assertEquals(Arrays.asList(new Match(0, 4), new Match(4, 10)), re.findAll(new StringBuilder("abcxabcbcx")));
+    }
+
+    @Test
+    public void testStats() {
+        List<RegularExpressionStats> compiled = new ArrayList<>();
+        RegularExpression.setCompileListener(compiled::add);
+        try {
+            RegularExpression re = new RegularExpression("(a|b)*abb");
+            RegularExpressionStats stats = re.getStats();
+            assertEquals("(a|b)*abb", stats.getExpression());
+            
+            // a, b, |, *, a, b, b and 3 concatenations
+            assertEquals(10, stats.getSyntaxTreeNodeCount());
+            assertEquals(6, stats.getNonDeterministicStateCount());
+            assertTrue(stats.getNonDeterministicTransitionCount() > 0);
+            assertEquals(re.getUnminimizedStateCount(), stats.getUnminimizedStateCount());
+            assertEquals(4, stats.getStateCount());
+            assertTrue(stats.getTableBytes() > 0);
+            assertTrue(stats.getDeterministicNanos() > 0);
+            assertTrue(stats.getTotalNanos() >= stats.getSyntaxTreeNanos() + stats.getMinimizeNanos());
+            
+            // nothing deterministic is built for the bit-parallel matcher
+            stats = new RegularExpressionBuilder().determinize(false).toRegularExpression("(a|b)*abb").getStats();
+            assertEquals(0, stats.getNonDeterministicStateCount());
+            assertEquals(0, stats.getStateCount());
+            assertEquals(0, stats.getDeterministicNanos());
+            assertTrue(stats.getTableBytes() > 0);
+            
+            assertEquals(2, compiled.size());
+            assertSame(re.getStats(), compiled.get(0));
+        } finally {
+            RegularExpression.setCompileListener(null);
+        }
+    }
+
+    @Test
+    public void testUtf8() {
+        // a, é (2 bytes), € (3 bytes) and 😀 (4 bytes, a surrogate pair)
+        String alphabet = "a\u00e9\u20ac\ud83d\ude00";
+        RegularExpression re = new RegularExpression("a(\u00e9|\u20ac)*(\ud83d\ude00)");
+        for (String input : new String[] {"a\ud83d\ude00", "a\u00e9\u20ac\u00e9\ud83d\ude00", "a\u00e9", "\ud83d\ude00", "", "a\u00e9\ud83d"}) {
+            byte[] utf8 = input.getBytes(StandardCharsets.UTF_8);
+            assertEquals(input, re.accepts(input), re.accepts(utf8));
+            
+            ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length + 2);
+            direct.put((byte) 'x').put(utf8).flip();
+            direct.position(1);
+            assertEquals(input, re.accepts(input), re.accepts(direct));
+            assertEquals(1, direct.position());
+        }
+        
+        // the byte tables accept the same language as the character tables
+        for (String expression : EXPRESSIONS) {
+            RegularExpression ascii = new RegularExpression(expression);
+            Random random = new Random(expression.hashCode());
+            for (int n = 0; n < 200; n++) {
+                char[] input = new char[random.nextInt(8)];
+                for (int k = 0; k < input.length; k++) {
+                    input[k] = "abcdx\u00e9".charAt(random.nextInt(6));
+                }
+                String string = new String(input);
+                assertEquals(string, ascii.accepts(string), ascii.accepts(string.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        
+        // byte offsets, \u00e9 is 2 bytes and 😀 is 4
+        byte[] text = "\u00e9a\u00e9\ud83d\ude00xa\ud83d\ude00".getBytes(StandardCharsets.UTF_8);
+        assertEquals(new Match(2, 9), re.find(text));
+        assertEquals(Arrays.asList(new Match(2, 9), new Match(10, 15)), re.findAll(text));
+        ByteBuffer buffer = ByteBuffer.wrap(text);
+        buffer.position(2);
+        assertEquals(Arrays.asList(new Match(0, 7), new Match(8, 13)), re.findAll(buffer));
+        assertNull(re.find("\u00e9\u00e9".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testProfile() {
+        assertNull(new RegularExpression("a(bc)*d").getProfile());
+        
+        RegularExpression re = new RegularExpressionBuilder().profile(true).toRegularExpression("((a|b)*abb)|(c(d|e)*)");
+        Random random = new Random(5);
+        for (int n = 0; n < 1000; n++) {
+            StringBuilder input = new StringBuilder();
+            for (int k = random.nextInt(30); k > 0; k--) {
+                input.append(random.nextBoolean() ? 'a' : 'b');
+            }
+            re.accepts(input.append("abb"));
+        }
+        
+        RegularExpressionProfile profile = re.getProfile();
+        assertEquals(re.getStateCount(), profile.getStateCount());
+        // every input starts in the initial state and a b goes back to it
+        int initial = profile.getInitialState();
+        assertTrue(profile.getStateVisits(initial) >= 1000);
+        assertEquals(profile.getStateVisits(initial),
+                profile.getTransitionVisits(initial, 'a') + profile.getTransitionVisits(initial, 'b'));
+        assertEquals(0, profile.getTransitionVisits(initial, 'c'));
+        
+        // the states for c(d|e)* were never visited
+        int[] hot = profile.getHotStates();
+        assertTrue(hot.length < profile.getStateCount());
+        long total = 0;
+        for (int i = 0; i < hot.length; i++) {
+            total += profile.getStateVisits(hot[i]);
+            if (i > 0) {
+                assertTrue(profile.getStateVisits(hot[i - 1]) >= profile.getStateVisits(hot[i]));
+            }
+        }
+        assertEquals(profile.getTotalVisits(), total);
+        
+        // the hottest state is first after the relayout and the language doesn't change
+        RegularExpression relaid = re.relayout();
+        assertNull(relaid.getProfile());
+        assertSameLanguage(new RegularExpression("((a|b)*abb)|(c(d|e)*)"), relaid, "abcde", 6);
+        DFATable table = relaid.getTable();
+        assertEquals(re.getTable().transitions.length, table.transitions.length);
+        assertTrue(table.step(table.initialState, 'c') != DFATable.DEAD_STATE);
+        int hottest = hot[0];
+        assertEquals(re.getTable().accepting[hottest], table.accepting[0]);
+    }
+
+    @Test
+    public void testCompact() {
+        RegularExpressionBuilder compact = new RegularExpressionBuilder().compact(true);
+        for (String expression : EXPRESSIONS) {
+            assertSameLanguage(new RegularExpression(expression), compact.toRegularExpression(expression), "abcdx", 6);
+        }
+        
+        // a long concatenation is all single transitions, except the initial state which also has the closure's
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            literal.append((char) ('a' + i % 26));
+        }
+        String expression = "(" + literal + ")*";
+        RegularExpression full = new RegularExpression(expression);
+        RegularExpression re = compact.toRegularExpression(expression);
+        CompactDFATable table = re.getCompactTable();
+        assertEquals(full.getStateCount(), re.getStateCount());
+        assertEquals(table.stateCount, table.countStates(CompactDFATable.SINGLE));
+        assertTrue(re.getStats().getTableBytes() * 4 < full.getStats().getTableBytes());
+        assertTrue(re.accepts(literal.toString() + literal));
+        assertFalse(re.accepts(literal.substring(1)));
+        
+        // ranges and dense rows
+        re = compact.toRegularExpression("(a|b|c|d|x)*(a|c)(a|b|c|d|e|f|g|h|i|j|k|l|m|n|o|p|q|r|s|t|u|v|w|x|y|z)");
+        table = re.getCompactTable();
+        assertTrue(table.countStates(CompactDFATable.RANGES) + table.countStates(CompactDFATable.DENSE) > 0);
+        assertSameLanguage(new RegularExpression("(a|b|c|d|x)*(a|c)(a|b|c|d|e|f|g|h|i|j|k|l|m|n|o|p|q|r|s|t|u|v|w|x|y|z)"),
+                re, "abcdxz", 5);
+        
+        // the other ways of matching still work
+        assertEquals(Arrays.asList(new Match(0, 3)), re.findAll("aaz"));
+        assertTrue(re.matcher().feed("cz").accepts());
+        
+        // negated classes cover almost every character, each state is encoded from the class map's runs
+        String negated = "([^a]|a)*a([^a]|a){9}";
+        re = new RegularExpressionBuilder().compact(true).bitParallel(false).toRegularExpression(negated);
+        assertTrue(re.getStateCount() > 1000);
+        assertSameLanguage(new RegularExpressionBuilder().bitParallel(false).toRegularExpression(negated), re, "ab\u20ac", 11);
+        assertTrue(re.accepts("\uffeea\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac"));
+        assertFalse(re.accepts("\uffeea\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac"));
+    }
+
+    @Test
+    public void testFollowPositions() {
+        RegularExpressionBuilder fromNonDeterministic = new RegularExpressionBuilder().followPositions(false);
+        String[] expressions = {"a", "a*", "(a|b)*abb", "((a|b)*abb)|(c(d|e)*)", "((a(b(c(d)*)*)*)*e)*",
+            "(ab|ac)*(a*|b)", "(a*b*)*c"};
+        for (String expression : expressions) {
+            RegularExpression re = new RegularExpression(expression);
+            RegularExpression expected = fromNonDeterministic.toRegularExpression(expression);
+            assertEquals(expression, expected.getStateCount(), re.getStateCount());
+            assertSameLanguage(expected, re, "abcde", 6);
+        }
+        
+        // the positions of a long literal are single links, so compiling it is linear
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            literal.append((char) ('a' + i % 3));
+        }
+        RegularExpression re = new RegularExpression(literal.toString());
+        assertEquals(50001, re.getStats().getNonDeterministicStateCount());
+        assertEquals(50001, re.getStateCount());
+        assertTrue(re.accepts(literal));
+        assertFalse(re.accepts(literal.substring(1)));
+    }
+
+    @Test
+    public void testClassesAndRepetition() {
+        RegularExpression re = new RegularExpression("[a-c]+x?");
+        assertTrue(re.accepts("abcab"));
+        assertTrue(re.accepts("cx"));
+        assertFalse(re.accepts("x"));
+        assertFalse(re.accepts("abd"));
+        
+        // special characters are literals inside a class
+        re = new RegularExpression("[]*+?-]{2}[^a-y]");
+        assertTrue(re.accepts("]?z"));
+        assertTrue(re.accepts("*-\u00e9"));
+        assertFalse(re.accepts("*-b"));
+        assertFalse(re.accepts("*z"));
+        
+        // every way of matching agrees with the expanded expression
+        String repeated = "(ab|[c-e]){2,3}f{1,}";
+        String expanded = "((ab)|(c|d|e))((ab)|(c|d|e))(((ab)|(c|d|e))f|f)f*";
+        RegularExpression expected = new RegularExpression(expanded);
+        assertSameLanguage(expected, new RegularExpression(repeated), "abcef", 7);
+        assertSameLanguage(expected, new RegularExpressionBuilder().followPositions(false).toRegularExpression(repeated), "abcef", 7);
+        assertSameLanguage(expected, new RegularExpressionBuilder().determinize(false).toRegularExpression(repeated), "abcef", 7);
+        assertSameLanguage(expected, new RegularExpressionBuilder().lazy(true).toRegularExpression(repeated), "abcef", 7);
+        assertEquals(expected.getStateCount(), new RegularExpression(repeated).getStateCount());
+        
+        // | takes everything to its left in the group, so a postfix operator only binds its own character or group
+        for (String expression : new String[] {"ab+|c", "ab{2}|c", "a[bc]|d"}) {
+            re = new RegularExpression(expression);
+            assertTrue(re.accepts(expression.substring(expression.length() - 1)));
+            assertFalse(re.accepts("a" + expression.substring(expression.length() - 1)));
+        }
+        assertTrue(new RegularExpression("ab+|c").accepts("abb"));
+        assertTrue(new RegularExpression("ab{2}|c").accepts("abb"));
+        assertFalse(new RegularExpression("ab{2}|c").accepts("ab"));
+        assertTrue(new RegularExpression("a[bc]|d").accepts("ac"));
+        
+        // a class is one edge, not one per character
+        StringBuilder union = new StringBuilder("(a");
+        for (char c = 'b'; c <= 'z'; c++) {
+            union.append('|').append(c);
+        }
+        union.append(")");
+        RegularExpression classes = new RegularExpressionBuilder().determinize(false).bitParallel(false).toRegularExpression("[a-z]{1,20}");
+        RegularExpression unions = new RegularExpressionBuilder().determinize(false).bitParallel(false)
+                .toRegularExpression(union + "(" + union + "(" + union + ")*)*");
+        assertTrue(classes.getStats().getNonDeterministicTransitionCount() * 10 < unions.getStats().getNonDeterministicTransitionCount());
+        assertTrue(classes.accepts("q"));
+        assertTrue(classes.accepts("abcdefghijklmnopqrst"));
+        assertFalse(classes.accepts("abcdefghijklmnopqrstu"));
+        
+        // classes work for searching, UTF-8 and sets too
+        re = new RegularExpression("[0-9]+");
+        assertEquals(Arrays.asList(new Match(2, 5), new Match(7, 9)), re.findAll("ab123cd45"));
+        assertTrue(new RegularExpression("[^a][^a]").accepts("\uD83D\uDE00".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(new RegularExpression("[^a][^a]").accepts("\u00e9".getBytes(StandardCharsets.UTF_8)));
+        RegularExpressionSet set = new RegularExpressionSet("[a-m]+", "[k-z]+", "k");
+        assertEquals(3, set.matches("k").cardinality());
+        assertTrue(set.matches("ab").get(0));
+        assertFalse(set.matches("ab").get(1));
+        
+        for (String invalid : new String[] {"[a-", "[z-a]", "a{2", "a{3,1}", "a{0}", "{2}", "a{x}", "+a", "(?)", "a{1001}",
+                // nested repetitions multiply, so they're limited by the size of the expanded tree
+                "((a{1000}){1000}){1000}", "((ab){1000}){1000}", "(((a{2,}){100}){100}){100}"}) {
+            try {
+                new RegularExpression(invalid);
+                fail(invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        
+        // nested repetitions under the limit are copied out
+        StringBuilder hundred = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            hundred.append("ab");
+        }
+        RegularExpression nested = new RegularExpression("((ab){10}){10}");
+        assertTrue(nested.accepts(hundred));
+        assertFalse(nested.accepts(hundred.substring(2)));
+    }
+
+    @Test
+    public void testInterleavedLanes() {
+        // 2^17 states, large enough that the default picks eight lanes, and kept as a table instead of matched bit-parallel
+        RegularExpression re = new RegularExpressionBuilder().bitParallel(false).toRegularExpression("(a|b)*a(a|b){16}");
+        assertTrue(re.getStateCount() > 100000);
+        
+        // mixed lengths so lanes finish alone, a few dead lanes, and a count that doesn't fill the last group
+        Random random = new Random(25);
+        CharSequence[] inputs = new CharSequence[1003];
+        for (int i = 0; i < inputs.length; i++) {
+            char[] input = new char[random.nextInt(60)];
+            for (int k = 0; k < input.length; k++) {
+                input[k] = random.nextInt(50) == 0 ? 'x' : random.nextBoolean() ? 'a' : 'b';
+            }
+            inputs[i] = new String(input);
+        }
+        
+        boolean[] defaults = new boolean[inputs.length];
+        re.acceptsAllInterleaved(inputs, defaults);
+        for (int lanes : new int[] {1, 4, 8}) {
+            boolean[] out = new boolean[inputs.length];
+            re.acceptsAllInterleaved(inputs, out, lanes);
+            for (int i = 0; i < inputs.length; i++) {
+                boolean expected = re.accepts(inputs[i]);
+                assertEquals(lanes + " " + inputs[i], expected, out[i]);
+                assertEquals(inputs[i].toString(), expected, defaults[i]);
+            }
+        }
+        
+        try {
+            re.acceptsAllInterleaved(inputs, defaults, 3);
+            fail("3 lanes should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLargeExpression() {
+        // a union of 20000 keywords, deep enough to overflow the stack if the tree was walked recursively
+        StringBuilder expression = new StringBuilder();
+        StringBuilder last = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            if (i > 0) {
+                expression.append('|');
+            }
+            last.setLength(0);
+            for (int n = i; n > 0 || last.length() == 0; n /= 26) {
+                last.append((char) ('a' + n % 26));
+            }
+            expression.append('(').append(last).append(')');
+        }
+        
+        RegularExpression re = new RegularExpressionBuilder().determinize(false).toRegularExpression(expression.toString());
+        assertTrue(re.accepts("a"));
+        assertTrue(re.accepts(last));
+        assertFalse(re.accepts("aaaa"));
+        
+        RegularExpression deterministic = new RegularExpression(expression.toString());
+        assertTrue(deterministic.accepts("zz"));
+        assertTrue(deterministic.accepts(last));
+        assertFalse(deterministic.accepts("aaaa"));
+        
+        // a single literal 50000 characters long
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            literal.append((char) ('a' + i % 3));
+        }
+        re = new RegularExpressionBuilder().determinize(false).toRegularExpression(literal.toString());
+        assertTrue(re.accepts(literal));
+        assertFalse(re.accepts(literal.substring(1)));
+        
+        // printing the tree walks it with a stack too, one line per node indented by its depth
+        re = new RegularExpression(literal.substring(0, 5000));
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(printed, true));
+            new RegularExpression("a|(bc)").printSyntaxTree();
+            assertEquals("\ta\n|\n\t\tb\n\t.\n\t\tc\n", printed.toString().replace(System.lineSeparator(), "\n"));
+            printed.reset();
+            re.printSyntaxTree();
+        } finally {
+            System.setOut(out);
+        }
+        assertEquals(re.getStats().getSyntaxTreeNodeCount(), printed.toString().split(System.lineSeparator()).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorUnclosedParenthesis() {
+        RegularExpression invalid = new RegularExpression("(ab");
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testConstructorEmpty() {
         RegularExpression empty = new RegularExpression("");